@@ -0,0 +1,99 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Reads the base64 encoding of another stream, without line breaks. The source is encoded a
+ * block at a time as this stream is read, so it is never held in memory as a whole.
+ */
+public class Base64InputStream extends InputStream {
+  private static final int RAW_BLOCK = 3 * 1024;
+  private static final Base64.Encoder encoder = Base64.getEncoder();
+
+  private final InputStream in;
+  private final byte[] raw = new byte[RAW_BLOCK];
+  private final byte[] encoded = new byte[RAW_BLOCK / 3 * 4];
+  private int pos;
+  private int limit;
+  private boolean eof;
+
+  public Base64InputStream(InputStream in) {
+    this.in = in;
+  }
+
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    // encode whole blocks of three, so there is no padding until the very end
+    int n = 0;
+    while (n < raw.length) {
+      int r = in.read(raw, n, raw.length - n);
+      if (r == -1) {
+        eof = true;
+        break;
+      }
+      n += r;
+    }
+    if (n == 0) {
+      return false;
+    }
+    if (n == raw.length) {
+      limit = encoder.encode(raw, encoded);
+    } else {
+      limit = encoder.encode(Arrays.copyOf(raw, n), encoded);
+    }
+    pos = 0;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return encoded[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    int n = Math.min(len, limit - pos);
+    System.arraycopy(encoded, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return limit - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
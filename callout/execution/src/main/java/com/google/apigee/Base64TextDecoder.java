@@ -0,0 +1,103 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 text that arrives in pieces, such as the character events of an XML text
+ * node, and writes the bytes to a stream. A piece may end anywhere, even within a group of four
+ * characters. Whitespace is skipped.
+ */
+public class Base64TextDecoder {
+  private static final int[] values = new int[128];
+
+  static {
+    Arrays.fill(values, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      values[alphabet.charAt(i)] = i;
+    }
+  }
+
+  private final OutputStream out;
+  private final byte[] buf = new byte[3 * 1024];
+  private int len;
+  // bits of the group being decoded, and the number of characters in it
+  private int group;
+  private int count;
+  private int padding;
+
+  public Base64TextDecoder(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Decode the next piece of text.
+   *
+   * @param text the characters.
+   */
+  public void write(CharSequence text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        continue;
+      }
+      if (c == '=') {
+        if (count < 2) {
+          throw new IOException("misplaced padding in base64 text");
+        }
+        padding++;
+        group <<= 6;
+        count++;
+      } else {
+        int v = (c < 128) ? values[c] : -1;
+        if (v < 0 || padding > 0) {
+          throw new IOException(String.format("invalid base64 character (%c)", c));
+        }
+        group = (group << 6) | v;
+        count++;
+      }
+      if (count == 4) {
+        if (len + 3 > buf.length) {
+          out.write(buf, 0, len);
+          len = 0;
+        }
+        buf[len++] = (byte) (group >> 16);
+        if (padding < 2) {
+          buf[len++] = (byte) (group >> 8);
+        }
+        if (padding < 1) {
+          buf[len++] = (byte) group;
+        }
+        group = 0;
+        count = 0;
+      }
+    }
+  }
+
+  /** Check that the text ended on a whole group and write out the remaining bytes. */
+  public void finish() throws IOException {
+    if (count != 0) {
+      throw new IOException("truncated base64 text");
+    }
+    out.write(buf, 0, len);
+    len = 0;
+    padding = 0;
+  }
+}
@@ -0,0 +1,245 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An in-memory buffer made of fixed-size chunks, in place of a ByteArrayOutputStream.
+ *
+ * <p>Growing never copies what was written, and no single array is larger than a chunk, so a
+ * large attachment does not need one huge contiguous array. The content is read back through
+ * an InputStream, without a final copy.
+ *
+ * <p>Chunks come from a small shared pool. {@link #toInputStream} hands the chunks over to the
+ * stream, which gives them back to the pool once it has been read to the end or closed, and
+ * {@link #release} gives them back at once. A buffer that is simply dropped leaves its chunks
+ * to the garbage collector. Not thread-safe.
+ */
+public class ChunkBuffer extends OutputStream {
+  // well below the size at which G1 treats an array as humongous
+  static final int CHUNK_SIZE = 0x8000;
+  private static final int POOLED_CHUNKS = 256;
+  private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(POOLED_CHUNKS);
+
+  private List<byte[]> chunks = new ArrayList<byte[]>();
+  // bytes used in the last chunk
+  private int last = CHUNK_SIZE;
+  private long size;
+
+  private static byte[] takeChunk() {
+    byte[] chunk = pool.poll();
+    return (chunk == null) ? new byte[CHUNK_SIZE] : chunk;
+  }
+
+  private static void giveBack(List<byte[]> chunks) {
+    for (byte[] chunk : chunks) {
+      if (!pool.offer(chunk)) {
+        break;
+      }
+    }
+  }
+
+  // the number of chunks in the pool now, for tests
+  static int pooledChunks() {
+    return pool.size();
+  }
+
+  @Override
+  public void write(int b) {
+    if (last == CHUNK_SIZE) {
+      chunks.add(takeChunk());
+      last = 0;
+    }
+    chunks.get(chunks.size() - 1)[last++] = (byte) b;
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      if (last == CHUNK_SIZE) {
+        chunks.add(takeChunk());
+        last = 0;
+      }
+      int n = Math.min(len, CHUNK_SIZE - last);
+      System.arraycopy(b, off, chunks.get(chunks.size() - 1), last, n);
+      last += n;
+      off += n;
+      len -= n;
+      size += n;
+    }
+  }
+
+  /** Read a stream to the end into this buffer. */
+  public ChunkBuffer readFrom(InputStream in) throws IOException {
+    while (true) {
+      if (last == CHUNK_SIZE) {
+        chunks.add(takeChunk());
+        last = 0;
+      }
+      int r = in.read(chunks.get(chunks.size() - 1), last, CHUNK_SIZE - last);
+      if (r == -1) {
+        return this;
+      }
+      last += r;
+      size += r;
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /** Write the content to another stream, without copying it first. */
+  public void writeTo(OutputStream out) throws IOException {
+    for (int i = 0; i < chunks.size(); i++) {
+      out.write(chunks.get(i), 0, (i == chunks.size() - 1) ? last : CHUNK_SIZE);
+    }
+  }
+
+  /** @return a copy of the content, for a caller that needs one array. */
+  public byte[] toByteArray() {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("too large for an array");
+    }
+    byte[] copy = new byte[(int) size];
+    int pos = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      int n = (i == chunks.size() - 1) ? last : CHUNK_SIZE;
+      System.arraycopy(chunks.get(i), 0, copy, pos, n);
+      pos += n;
+    }
+    return copy;
+  }
+
+  /**
+   * Read the content without taking it. The stream must not be read after the buffer is
+   * released or handed over.
+   */
+  public InputStream newInputStream() {
+    return newInputStream(0, size);
+  }
+
+  /**
+   * Read part of the content without taking it, as for {@link #newInputStream()}.
+   *
+   * @param from the offset of the first byte.
+   * @param to the offset after the last byte.
+   */
+  public InputStream newInputStream(long from, long to) {
+    if (from < 0 || to < from || to > size) {
+      throw new IndexOutOfBoundsException(String.format("%d..%d of %d", from, to, size));
+    }
+    return new ChunkInputStream(chunks, from, to, false);
+  }
+
+  /**
+   * Hand the content over to a stream, which gives the chunks back to the pool once it has
+   * been read to the end or closed. The buffer is left empty.
+   */
+  public InputStream toInputStream() {
+    InputStream in = new ChunkInputStream(chunks, 0, size, true);
+    chunks = new ArrayList<byte[]>();
+    last = CHUNK_SIZE;
+    size = 0;
+    return in;
+  }
+
+  /**
+   * Give the chunks back to the pool, leaving the buffer empty. Streams opened with {@link
+   * #newInputStream()} must not be read after this.
+   */
+  public void release() {
+    giveBack(chunks);
+    chunks = new ArrayList<byte[]>();
+    last = CHUNK_SIZE;
+    size = 0;
+  }
+
+  /** Reads a range of chunks. */
+  private static class ChunkInputStream extends InputStream {
+    private List<byte[]> chunks;
+    private final boolean owner;
+    private long pos;
+    private final long end;
+
+    ChunkInputStream(List<byte[]> chunks, long from, long to, boolean owner) {
+      this.chunks = chunks;
+      this.pos = from;
+      this.end = to;
+      this.owner = owner;
+    }
+
+    private void finish() {
+      if (chunks != null && owner) {
+        giveBack(chunks);
+      }
+      chunks = null;
+    }
+
+    @Override
+    public int read() {
+      if (pos >= end) {
+        finish();
+        return -1;
+      }
+      byte b = chunks.get((int) (pos / CHUNK_SIZE))[(int) (pos % CHUNK_SIZE)];
+      pos++;
+      return b & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (pos >= end) {
+        finish();
+        return -1;
+      }
+      int offset = (int) (pos % CHUNK_SIZE);
+      int n = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), end - pos);
+      System.arraycopy(chunks.get((int) (pos / CHUNK_SIZE)), offset, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - pos));
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - pos);
+    }
+
+    @Override
+    public void close() {
+      pos = end;
+      finish();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds fetched documents in memory, in their encoded form, keyed by URL and API key.
+ *
+ * <p>The cache is bounded by the memory its keys and documents take, counted at two bytes a
+ * character, not by their number, so a few large documents cannot crowd out the memory of the
+ * process. When a new document does not fit, the least recently used ones are evicted. Each
+ * entry expires at its own time. An expired entry is kept until it is replaced or evicted, so
+ * that it can be revalidated with its ETag or Last-Modified date rather than fetched again.
+ * Thread-safe.
+ */
+public class DocumentCache {
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /** One cached document. Immutable. */
+  public static class Entry {
+    private final String value;
+    private final String etag;
+    private final String lastModified;
+    private final long expires;
+
+    /**
+     * @param value the document.
+     * @param etag the ETag it came with, or null.
+     * @param lastModified the Last-Modified date it came with, or null.
+     * @param expires when it expires, in milliseconds since the epoch.
+     */
+    public Entry(String value, String etag, String lastModified, long expires) {
+      this.value = value;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public boolean isExpired(long now) {
+      return now >= expires;
+    }
+
+    /** @return the same document, expiring at another time. */
+    public Entry renew(long expires) {
+      return new Entry(value, etag, lastModified, expires);
+    }
+
+    // the size of the characters, as a Java 8 String holds them
+    long weight(String key) {
+      return 2L * ((long) key.length() + value.length());
+    }
+  }
+
+  /** @param maxBytes the most bytes of keys and documents to hold. */
+  public DocumentCache(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("the cache size must be positive");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Look up a document, expired or not. Counts nothing; the caller decides whether the lookup
+   * was a hit or a miss.
+   *
+   * @return the entry, or null.
+   */
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Store a document, evicting the least recently used ones to make room. A document larger
+   * than the whole cache is not stored.
+   */
+  public synchronized void put(String key, Entry entry) {
+    remove(key);
+    long weight = entry.weight(key);
+    if (weight > maxBytes) {
+      return;
+    }
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes + weight > maxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      bytes -= eldest.getValue().weight(eldest.getKey());
+      it.remove();
+      evictions++;
+    }
+    entries.put(key, entry);
+    bytes += weight;
+  }
+
+  public synchronized void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.weight(key);
+    }
+  }
+
+  public synchronized void countHit() {
+    hits++;
+  }
+
+  public synchronized void countMiss() {
+    misses++;
+  }
+
+  /** @return the number of lookups served from the cache. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return the number of lookups that had to fetch the document. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return the number of entries evicted to make room for others. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** @return the bytes of keys and documents held now. */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
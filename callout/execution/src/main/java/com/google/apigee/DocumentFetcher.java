@@ -0,0 +1,248 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches documents as base64 text, through an optional cache, with concurrent fetches of the
+ * same document shared.
+ *
+ * <p>An instance holds the settings of one request, and touches nothing of the request itself,
+ * so several of its fetches can run at once on other threads.
+ */
+public class DocumentFetcher {
+  // fetches in progress, for requests that want the same one
+  private static final SingleFlight<String> inFlight = new SingleFlight<String>();
+  // the most characters of base64 text allocated for before they arrive
+  private static final int MAX_PRESIZED = 1 << 20;
+
+  private final HttpFetcher http;
+  private final DocumentCache cache;
+  private final long ttl;
+  private final boolean revalidate;
+  private final long coalesceTimeout;
+
+  // a fetch run on behalf of the callers sharing it, under a cancellation of its own
+  private interface SharedFetch {
+    String call(HttpFetcher.Cancellation own) throws Exception;
+  }
+
+  /** A fetched document. */
+  public static class Result {
+    private final String value;
+    private final String cacheStatus;
+
+    Result(String value, String cacheStatus) {
+      this.value = value;
+      this.cacheStatus = cacheStatus;
+    }
+
+    /** @return the base64 text of the document. */
+    public String getValue() {
+      return value;
+    }
+
+    /**
+     * @return hit, revalidated, shared or miss, or null without a cache.
+     */
+    public String getCacheStatus() {
+      return cacheStatus;
+    }
+  }
+
+  /**
+   * @param http the client.
+   * @param cache the cache, or null.
+   * @param ttl how long a cached document is fresh, in seconds.
+   * @param revalidate whether an expired document is revalidated with a conditional GET.
+   * @param coalesceTimeout the longest wait, in milliseconds, for a fetch of the same document
+   *     that another caller started.
+   */
+  public DocumentFetcher(
+      HttpFetcher http, DocumentCache cache, long ttl, boolean revalidate, long coalesceTimeout) {
+    this.http = http;
+    this.cache = cache;
+    this.ttl = ttl;
+    this.revalidate = revalidate;
+    this.coalesceTimeout = coalesceTimeout;
+  }
+
+  public DocumentCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Fetch a document.
+   *
+   * @param url the URL of the document.
+   * @param headers request headers. The x-api-key header is part of the identity of a fetch.
+   */
+  public Result fetch(String url, Map<String, String> headers) throws Exception {
+    return fetch(url, headers, null);
+  }
+
+  /**
+   * Fetch a document, as part of a group of fetches that can be cancelled.
+   *
+   * @param group the deadline and cancel switch of the caller, or null.
+   * @see #fetch(String, Map)
+   */
+  public Result fetch(String url, Map<String, String> headers, HttpFetcher.Cancellation group)
+      throws Exception {
+    if (cache == null) {
+      String value =
+          fetchShared(
+              url,
+              headers,
+              group,
+              own -> http.get(url, headers, own, DocumentFetcher::encodeBase64));
+      return new Result(value, null);
+    }
+    return fetchCached(url, headers, group);
+  }
+
+  // Concurrent requests for the same document, with the same API key and
+  // cache, share one fetch. The requests that join a fetch in flight wait for
+  // it, up to the coalesce timeout or their deadline, and get its result or
+  // its error. A fetch cut off at the deadline of the request that started it
+  // is not an error of the document, so a waiting request takes it over. A
+  // cancel of that request stops the fetch only while no other request waits
+  // for it; one stopped anyway is taken over the same way.
+  private String fetchShared(
+      String url, Map<String, String> headers, HttpFetcher.Cancellation group, SharedFetch fetch)
+      throws Exception {
+    String key =
+        String.join(
+            "\n",
+            url,
+            String.valueOf(headers.get("x-api-key")),
+            (cache == null) ? "-" : Long.toString(cache.getMaxBytes()));
+    long timeout = coalesceTimeout;
+    if (group != null && group.getDeadline() != HttpFetcher.NO_DEADLINE) {
+      timeout = Math.max(0, Math.min(timeout, group.getDeadline() - System.currentTimeMillis()));
+    }
+    return inFlight.get(
+        key,
+        timeout,
+        (group == null) ? null : group.whenCancelled(),
+        () -> {
+          HttpFetcher.Cancellation own =
+              (group == null) ? null : group.newPart(() -> !inFlight.isShared(key));
+          try {
+            return fetch.call(own);
+          } catch (HttpFetcher.CancelledException e) {
+            throw new SingleFlight.Abandoned(e.getMessage(), e);
+          }
+        });
+  }
+
+  // The base64 text of a document, from the cache if it is fresh there.
+  // An expired entry is revalidated with a conditional GET when asked for;
+  // otherwise it is fetched again.
+  private Result fetchCached(
+      String url, Map<String, String> headers, HttpFetcher.Cancellation group) throws Exception {
+    // a document fetched with one API key is not served to a caller with another,
+    // since only the backend can tell whether the key may read it
+    String key = url + "\n" + headers.get("x-api-key");
+    long now = System.currentTimeMillis();
+    long expires = now + ttl * 1000;
+    String value;
+    DocumentCache.Entry entry = cache.get(key);
+    // set by the request that does the fetch; the others share its result
+    String[] status = {"shared"};
+    if (entry != null && !entry.isExpired(now)) {
+      status[0] = "hit";
+      value = entry.getValue();
+    } else if (revalidate) {
+      value =
+          fetchShared(
+              url,
+              headers,
+              group,
+              own -> {
+                Map<String, String> validators = new HashMap<String, String>();
+                if (entry != null) {
+                  validators.put(HttpFetcher.ETAG, entry.getETag());
+                  validators.put(HttpFetcher.LAST_MODIFIED, entry.getLastModified());
+                }
+                String fetched =
+                    http.getIfChanged(url, headers, validators, own, DocumentFetcher::encodeBase64);
+                if (fetched == null) {
+                  if (entry == null) {
+                    throw new IllegalStateException(
+                        String.format("GET %s returned status 304 for a document not cached", url));
+                  }
+                  status[0] = "revalidated";
+                  cache.put(key, entry.renew(expires));
+                  return entry.getValue();
+                }
+                status[0] = "miss";
+                cache.put(
+                    key,
+                    new DocumentCache.Entry(
+                        fetched,
+                        validators.get(HttpFetcher.ETAG),
+                        validators.get(HttpFetcher.LAST_MODIFIED),
+                        expires));
+                return fetched;
+              });
+    } else {
+      value =
+          fetchShared(
+              url,
+              headers,
+              group,
+              own -> {
+                String fetched = http.get(url, headers, own, DocumentFetcher::encodeBase64);
+                status[0] = "miss";
+                cache.put(key, new DocumentCache.Entry(fetched, null, null, expires));
+                return fetched;
+              });
+    }
+    if (status[0].equals("miss")) {
+      cache.countMiss();
+    } else {
+      cache.countHit();
+    }
+    return new Result(value, status[0]);
+  }
+
+  // the base64 text of a body, encoded a block at a time as it is read, so
+  // the raw document is never held as a whole
+  private static String encodeBase64(InputStream body, long contentLength) throws IOException {
+    // the Content-Length sizes the text only up to a point; a header can
+    // claim anything, and a larger text grows as the body arrives
+    int capacity =
+        (contentLength < 0) ? 8192 : (int) Math.min((contentLength + 2) / 3 * 4, MAX_PRESIZED);
+    StringBuilder sb = new StringBuilder(capacity);
+    InputStream in = new Base64InputStream(body);
+    byte[] buf = IOUtil.borrowBuffer();
+    try {
+      for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+        for (int i = 0; i < n; i++) {
+          sb.append((char) buf[i]);
+        }
+      }
+    } finally {
+      IOUtil.releaseBuffer(buf);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,398 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Fetches documents over HTTP GET, streaming each response body to the caller.
+ *
+ * <p>Connections are kept alive and reused through the JVM's connection cache, which is shared
+ * by the whole process. A connection goes back to the cache only once its response has been
+ * read to the end and closed, so every body, including that of an error response, is drained
+ * before the fetch returns. The number of requests in flight to each host is limited; a fetch
+ * waits for a free slot at most as long as the connect timeout. A fetch can belong to a {@link
+ * Cancellation}, which gives it a deadline and lets another thread stop it; either way its
+ * connection is closed, whatever state it is in. An instance is thread-safe.
+ */
+public class HttpFetcher {
+  public static final String ETAG = "ETag";
+  public static final String LAST_MODIFIED = "Last-Modified";
+  public static final long NO_DEADLINE = 0;
+
+  // closes the connections of fetches that pass their deadlines
+  private static final ScheduledThreadPoolExecutor watchdogs = newWatchdogs();
+
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int maxPerHost;
+  private final Map<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+  /** Thrown when a fetch is cancelled. */
+  public static class CancelledException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CancelledException(String message) {
+      super(message);
+    }
+  }
+
+  /** Thrown when a fetch passes its deadline. */
+  public static class DeadlineException extends CancelledException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A deadline and a cancel switch for a group of fetches, such as those of one request.
+   * Cancelling closes the connections of the fetches in progress and fails those that start
+   * later. A group can hold parts, which a cancel reaches only if they allow it at the time.
+   * Thread-safe.
+   */
+  public static class Cancellation {
+    private final long deadline;
+    private final BooleanSupplier cancellable;
+    private final List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+    private final List<Cancellation> parts = new ArrayList<Cancellation>();
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    private boolean cancelled;
+
+    /**
+     * @param deadline when the fetches give up, in milliseconds since the epoch, or {@link
+     *     #NO_DEADLINE}. A response still being read then is cut off, however steadily it
+     *     arrives.
+     */
+    public Cancellation(long deadline) {
+      this(deadline, () -> true);
+    }
+
+    private Cancellation(long deadline, BooleanSupplier cancellable) {
+      this.deadline = deadline;
+      this.cancellable = cancellable;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    /** @return completes when the group is cancelled, for callers waiting on other things. */
+    public CompletableFuture<Void> whenCancelled() {
+      return done;
+    }
+
+    /**
+     * @param cancellable asked when this group is cancelled; false leaves the fetches of the
+     *     part running, up to the deadline.
+     * @return a part of this group, with the same deadline.
+     */
+    public Cancellation newPart(BooleanSupplier cancellable) {
+      Cancellation part = new Cancellation(deadline, cancellable);
+      boolean late;
+      synchronized (this) {
+        late = cancelled;
+        if (!late) {
+          parts.add(part);
+        }
+      }
+      if (late && cancellable.getAsBoolean()) {
+        part.cancel();
+      }
+      return part;
+    }
+
+    public void cancel() {
+      List<HttpURLConnection> open;
+      List<Cancellation> within;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        open = new ArrayList<HttpURLConnection>(connections);
+        within = new ArrayList<Cancellation>(parts);
+        connections.clear();
+        parts.clear();
+      }
+      done.complete(null);
+      for (HttpURLConnection connection : open) {
+        connection.disconnect();
+      }
+      for (Cancellation part : within) {
+        if (part.cancellable.getAsBoolean()) {
+          part.cancel();
+        }
+      }
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    private synchronized boolean register(HttpURLConnection connection) {
+      if (cancelled) {
+        return false;
+      }
+      connections.add(connection);
+      return true;
+    }
+
+    private synchronized void unregister(HttpURLConnection connection) {
+      connections.remove(connection);
+    }
+  }
+
+  /** Reads a response body. */
+  public interface BodyReader<T> {
+    /**
+     * @param body the body. It is drained and closed after this returns normally.
+     * @param contentLength the Content-Length of the response, or -1.
+     */
+    T read(InputStream body, long contentLength) throws IOException;
+  }
+
+  /**
+   * @param connectTimeout the longest wait, in milliseconds, for a connection.
+   * @param readTimeout the longest wait, in milliseconds, for the next bytes of a response.
+   * @param maxPerHost the most requests in flight to one host at a time.
+   */
+  public HttpFetcher(int connectTimeout, int readTimeout, int maxPerHost) {
+    if (connectTimeout <= 0 || readTimeout <= 0 || maxPerHost <= 0) {
+      throw new IllegalArgumentException("timeouts and connection limit must be positive");
+    }
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.maxPerHost = maxPerHost;
+  }
+
+  private static ScheduledThreadPoolExecutor newWatchdogs() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread thread = new Thread(r, "xop-fetch-deadline");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  private Semaphore slots(URL url) {
+    String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    return hosts.computeIfAbsent(key, k -> new Semaphore(maxPerHost, true));
+  }
+
+  /**
+   * GET a document.
+   *
+   * @param url an http or https URL.
+   * @param headers request headers. Null values are left out.
+   * @param reader gets the body of a 2xx response.
+   * @return what the reader returns.
+   * @throws IOException if the request fails or times out, or the status is not 2xx.
+   */
+  public <T> T get(String url, Map<String, String> headers, BodyReader<T> reader)
+      throws IOException {
+    return fetch(url, headers, null, null, reader);
+  }
+
+  /**
+   * GET a document, as part of a group that can be cancelled.
+   *
+   * @param cancellation the group, or null.
+   * @throws DeadlineException if the deadline of the group passes first.
+   * @throws CancelledException if the group is cancelled first.
+   * @see #get(String, Map, BodyReader)
+   */
+  public <T> T get(
+      String url, Map<String, String> headers, Cancellation cancellation, BodyReader<T> reader)
+      throws IOException {
+    return fetch(url, headers, null, cancellation, reader);
+  }
+
+  /**
+   * GET a document, unless it is the same as a copy already held.
+   *
+   * @param validators on the way in, the ETag and Last-Modified response headers that came
+   *     with the copy, if any, which are sent as If-None-Match and If-Modified-Since. On the
+   *     way out, those of this response.
+   * @param cancellation as for {@link #get(String, Map, Cancellation, BodyReader)}.
+   * @return what the reader returns, or null if the status is 304 Not Modified.
+   * @throws IOException if the request fails or times out, or the status is not 2xx or 304.
+   */
+  public <T> T getIfChanged(
+      String url,
+      Map<String, String> headers,
+      Map<String, String> validators,
+      Cancellation cancellation,
+      BodyReader<T> reader)
+      throws IOException {
+    return fetch(url, headers, validators, cancellation, reader);
+  }
+
+  // the time left before a deadline, capped at a timeout
+  private int timeLeft(String url, long deadline, int timeout) throws DeadlineException {
+    if (deadline == NO_DEADLINE) {
+      return timeout;
+    }
+    long left = deadline - System.currentTimeMillis();
+    if (left <= 0) {
+      throw new DeadlineException(String.format("GET %s passed its deadline", url));
+    }
+    return (int) Math.min(timeout, left);
+  }
+
+  private <T> T fetch(
+      String url,
+      Map<String, String> headers,
+      Map<String, String> validators,
+      Cancellation cancellation,
+      BodyReader<T> reader)
+      throws IOException {
+    long deadline = (cancellation == null) ? NO_DEADLINE : cancellation.getDeadline();
+    URL target = new URL(url);
+    if (!"http".equals(target.getProtocol()) && !"https".equals(target.getProtocol())) {
+      throw new IOException(String.format("not an http URL (%s)", url));
+    }
+    Semaphore slots = slots(target);
+    try {
+      if (!slots.tryAcquire(timeLeft(url, deadline, connectTimeout), TimeUnit.MILLISECONDS)) {
+        timeLeft(url, deadline, connectTimeout);
+        throw new IOException(
+            String.format("timed out waiting for a connection to %s", target.getHost()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted waiting for a connection", e);
+    }
+    ScheduledFuture<?> watchdog = null;
+    AtomicBoolean cutOff = new AtomicBoolean();
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) target.openConnection();
+      if (cancellation != null && !cancellation.register(connection)) {
+        throw new CancelledException(String.format("GET %s was cancelled", url));
+      }
+      connection.setConnectTimeout(timeLeft(url, deadline, connectTimeout));
+      connection.setReadTimeout(timeLeft(url, deadline, readTimeout));
+      if (deadline != NO_DEADLINE) {
+        // the read timeout starts again with each read, so only closing the
+        // connection ends a response that trickles in
+        HttpURLConnection open = connection;
+        watchdog =
+            watchdogs.schedule(
+                () -> {
+                  cutOff.set(true);
+                  open.disconnect();
+                },
+                deadline - System.currentTimeMillis(),
+                TimeUnit.MILLISECONDS);
+      }
+      connection.setRequestMethod("GET");
+      connection.setUseCaches(false);
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        if (header.getValue() != null) {
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+      }
+      if (validators != null) {
+        if (validators.get(ETAG) != null) {
+          connection.setRequestProperty("If-None-Match", validators.get(ETAG));
+        }
+        if (validators.get(LAST_MODIFIED) != null) {
+          connection.setRequestProperty("If-Modified-Since", validators.get(LAST_MODIFIED));
+        }
+      }
+      int status = connection.getResponseCode();
+      if (validators != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        drain(connection.getInputStream());
+        return null;
+      }
+      if (status < 200 || status > 299) {
+        drain(connection.getErrorStream());
+        throw new IOException(String.format("GET %s returned status %d", url, status));
+      }
+      if (validators != null) {
+        validators.clear();
+        validators.put(ETAG, connection.getHeaderField(ETAG));
+        validators.put(LAST_MODIFIED, connection.getHeaderField(LAST_MODIFIED));
+      }
+      InputStream body = connection.getInputStream();
+      T result;
+      try {
+        result = reader.read(body, connection.getContentLengthLong());
+      } catch (IOException | RuntimeException e) {
+        // the rest of the body is not wanted, so the connection is not reused
+        connection.disconnect();
+        throw e;
+      }
+      drain(body);
+      return result;
+    } catch (IOException e) {
+      if (e instanceof CancelledException) {
+        throw e;
+      }
+      if (cutOff.get()) {
+        throw new DeadlineException(String.format("GET %s passed its deadline", url));
+      }
+      if (cancellation != null && cancellation.isCancelled()) {
+        throw new CancelledException(String.format("GET %s was cancelled", url));
+      }
+      throw e;
+    } finally {
+      if (watchdog != null) {
+        watchdog.cancel(false);
+      }
+      if (cancellation != null && connection != null) {
+        cancellation.unregister(connection);
+      }
+      slots.release();
+    }
+  }
+
+  // read to the end and close, so the connection can be reused
+  private static void drain(InputStream in) throws IOException {
+    if (in == null) {
+      return;
+    }
+    byte[] buf = IOUtil.borrowBuffer();
+    try {
+      while (in.read(buf) != -1) {
+        // discard
+      }
+    } finally {
+      IOUtil.releaseBuffer(buf);
+      in.close();
+    }
+  }
+}
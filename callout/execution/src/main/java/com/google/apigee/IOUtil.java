@@ -15,36 +15,107 @@
 
 package com.google.apigee;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 public class IOUtil {
-  private static final int BUF_SIZE = 0x1000;
+  private static final int BUF_SIZE = 0x10000;
+  // the largest size hint trusted enough to allocate for up front; a header
+  // can claim anything, and a larger body grows in chunks as it arrives
+  private static final int MAX_PREALLOCATED = 1 << 20;
+
+  // One copy buffer per thread, taken out while in use. A stream being
+  // copied may itself copy or read another stream on the same thread, and
+  // that nested call then gets a buffer of its own.
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+  /**
+   * Take this thread's copy buffer, or a new one if it is in use. Hand it back with {@link
+   * #releaseBuffer} when done.
+   */
+  public static byte[] borrowBuffer() {
+    byte[] buf = buffers.get();
+    if (buf == null) {
+      return new byte[BUF_SIZE];
+    }
+    buffers.set(null);
+    return buf;
+  }
+
+  public static void releaseBuffer(byte[] buf) {
+    if (buf.length == BUF_SIZE) {
+      buffers.set(buf);
+    }
+  }
 
   public static long copy(InputStream from, OutputStream to) throws IOException {
     if (from == null) throw new IllegalArgumentException("from");
     if (to == null) throw new IllegalArgumentException("to");
-    byte[] buf = new byte[BUF_SIZE];
-    long total = 0;
-    while (true) {
-      int r = from.read(buf);
-      if (r == -1) {
-        break;
+    byte[] buf = borrowBuffer();
+    try {
+      long total = 0;
+      while (true) {
+        int r = from.read(buf);
+        if (r == -1) {
+          break;
+        }
+        to.write(buf, 0, r);
+        total += r;
       }
-      to.write(buf, 0, r);
-      total += r;
+      return total;
+    } finally {
+      releaseBuffer(buf);
     }
-    return total;
   }
 
   public static byte[] readAllBytes(InputStream is) throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    byte[] buf = new byte[BUF_SIZE];
-    for (int len = is.read(buf); len != -1; len = is.read(buf)) {
-      os.write(buf, 0, len);
+    return readAllBytes(is, -1);
+  }
+
+  /**
+   * Read a stream to the end.
+   *
+   * @param is the stream.
+   * @param expectedSize the number of bytes expected, such as from a Content-Length header, or
+   *     -1 if it is not known. When the stream holds exactly that many, up to 1 MiB, they are
+   *     read straight into the array that is returned, with no copy. A wrong hint costs a copy;
+   *     a larger one, or none, is not trusted for an allocation, and the bytes are gathered in
+   *     chunks as they arrive, then copied once.
+   * @return every byte of the stream.
+   */
+  public static byte[] readAllBytes(InputStream is, long expectedSize) throws IOException {
+    if (expectedSize < 0 || expectedSize > MAX_PREALLOCATED) {
+      // gathered in chunks, then copied once
+      return gather(new ChunkBuffer(), is);
+    }
+    byte[] data = new byte[(int) expectedSize];
+    int n = 0;
+    while (n < data.length) {
+      int r = is.read(data, n, data.length - n);
+      if (r == -1) {
+        // shorter than promised
+        return Arrays.copyOf(data, n);
+      }
+      n += r;
+    }
+    int next = is.read();
+    if (next == -1) {
+      return data;
+    }
+    // longer than promised
+    ChunkBuffer buffer = new ChunkBuffer();
+    buffer.write(data, 0, n);
+    buffer.write(next);
+    return gather(buffer, is);
+  }
+
+  private static byte[] gather(ChunkBuffer buffer, InputStream is) throws IOException {
+    try {
+      return buffer.readFrom(is).toByteArray();
+    } finally {
+      buffer.release();
     }
-    return os.toByteArray();
   }
 }
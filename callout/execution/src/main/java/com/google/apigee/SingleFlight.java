@@ -0,0 +1,150 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets concurrent callers that want the same value share one computation of it.
+ *
+ * <p>The first caller for a key runs the computation. Callers that arrive while it runs wait
+ * for its outcome, for a bounded time, rather than starting their own, and all of them get the
+ * same value or the same failure, unless the computation was {@link Abandoned}. Nothing is
+ * kept once the computation ends: the next caller for the key runs it again. Thread-safe.
+ */
+public class SingleFlight<V> {
+  private final ConcurrentMap<String, Call<V>> calls = new ConcurrentHashMap<String, Call<V>>();
+
+  // a computation in progress, and the number of callers waiting for it
+  private static class Call<V> {
+    final CompletableFuture<V> outcome = new CompletableFuture<V>();
+    final AtomicInteger waiters = new AtomicInteger();
+  }
+
+  /**
+   * Thrown by a computation that gave up for reasons of its own caller, such as a deadline,
+   * rather than because the value cannot be had. Callers waiting on it do not share this
+   * failure: one of them runs the computation again.
+   */
+  public static class Abandoned extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public Abandoned(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Get a value, computing it only if no other caller is computing it now.
+   *
+   * @param key names the value. Callers with equal keys share a computation.
+   * @param timeout the longest wait, in milliseconds, for a computation another caller started.
+   * @param work computes the value.
+   * @return the value.
+   * @throws IOException if the wait times out or is interrupted, or the shared computation
+   *     failed with a checked exception, whose message it keeps.
+   * @throws IllegalStateException if the shared computation failed with an unchecked
+   *     exception, whose message it keeps.
+   */
+  public V get(String key, long timeout, Callable<V> work) throws Exception {
+    return get(key, timeout, null, work);
+  }
+
+  /**
+   * Get a value, as {@link #get(String, long, Callable)} does, unless the caller stops waiting.
+   *
+   * @param stop completes when the caller no longer wants the value, or null.
+   * @throws IOException also if the wait is stopped.
+   */
+  public V get(String key, long timeout, CompletableFuture<?> stop, Callable<V> work)
+      throws Exception {
+    long giveUp = System.currentTimeMillis() + timeout;
+    while (true) {
+      Call<V> call = new Call<V>();
+      Call<V> running = calls.putIfAbsent(key, call);
+      if (running != null) {
+        try {
+          return await(running, Math.max(0, giveUp - System.currentTimeMillis()), timeout, stop);
+        } catch (Abandoned e) {
+          // the caller that ran it gave up; take over, if there is time left
+          continue;
+        }
+      }
+      V value;
+      try {
+        value = work.call();
+      } catch (Throwable t) {
+        // forget the call first, so a caller that comes later tries again
+        calls.remove(key, call);
+        call.outcome.completeExceptionally(t);
+        throw t;
+      }
+      calls.remove(key, call);
+      call.outcome.complete(value);
+      return value;
+    }
+  }
+
+  /** @return whether other callers are waiting for the computation of a key now. */
+  public boolean isShared(String key) {
+    Call<V> call = calls.get(key);
+    return call != null && call.waiters.get() > 0;
+  }
+
+  private V await(Call<V> running, long wait, long timeout, CompletableFuture<?> stop)
+      throws IOException {
+    running.waiters.incrementAndGet();
+    try {
+      if (stop != null) {
+        try {
+          CompletableFuture.anyOf(running.outcome, stop).get(wait, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+          // the outcome is looked at below
+        }
+        if (!running.outcome.isDone()) {
+          throw new IOException("stopped waiting for the same request in flight");
+        }
+      }
+      return running.outcome.get(wait, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException(
+          String.format("timed out after %d ms waiting for the same request in flight", timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted waiting for the same request in flight", e);
+    } catch (ExecutionException e) {
+      // each waiter gets its own exception, with the message of the shared one
+      Throwable cause = e.getCause();
+      if (cause instanceof Abandoned) {
+        throw (Abandoned) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw new IllegalStateException(cause.getMessage(), cause);
+      }
+      throw new IOException(cause.getMessage(), cause);
+    } finally {
+      running.waiters.decrementAndGet();
+    }
+  }
+}
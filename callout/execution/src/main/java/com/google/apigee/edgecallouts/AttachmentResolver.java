@@ -0,0 +1,280 @@
+// AttachmentResolver.java
+//
+// Copyright (c) 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.edgecallouts;
+
+import com.github.danieln.multipart.MultipartIndex;
+import com.github.danieln.multipart.MultipartInput;
+import com.github.danieln.multipart.PartInput;
+import com.google.apigee.Base64InputStream;
+import com.google.apigee.ChunkBuffer;
+import com.google.apigee.IOUtil;
+import com.google.apigee.xml.XopSplitter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Resolves the xop:Include references of a XOP package against its parts, in a single forward
+ * pass over a MultipartInput.
+ *
+ * <p>A part that is needed next, and referenced only once, is streamed straight from the
+ * message. A part that arrives before it is needed, or that is referenced more than once, is
+ * read into a {@link ChunkBuffer} and kept by its Content-ID until its last reference has
+ * been read. Once the references are known, a part that none of them names is read past
+ * without being kept.
+ */
+class AttachmentResolver {
+  private final MultipartInput mpi;
+  private final Predicate<String> acceptableType;
+  private final Map<String, ChunkBuffer> buffered = new HashMap<String, ChunkBuffer>();
+  private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+  AttachmentResolver(MultipartInput mpi, Predicate<String> acceptableType) {
+    this.mpi = mpi;
+    this.acceptableType = acceptableType;
+  }
+
+  /**
+   * Find the root part, named by the start parameter of the message content-type, or the first
+   * part if there is no start parameter. Parts before the root are buffered.
+   *
+   * @param start the start parameter, or null.
+   * @return the root part, with only its headers read.
+   */
+  PartInput findRoot(String start) throws IOException {
+    String rootId = (start == null) ? null : MultipartIndex.normalizeContentId(start);
+    PartInput part;
+    while ((part = mpi.nextPart()) != null) {
+      String cid = part.getHeaderField("content-id");
+      if (rootId == null
+          || (cid != null && rootId.equals(MultipartIndex.normalizeContentId(cid)))) {
+        return part;
+      }
+      buffer(part);
+    }
+    if (rootId == null) {
+      throw new IllegalStateException("no parts found");
+    }
+    throw new IllegalStateException(String.format("no part found for start (%s)", start));
+  }
+
+  /**
+   * Count the references to each part, so that a part referenced more than once is kept, and
+   * one referenced not at all is not.
+   *
+   * @param hrefs the href of each xop:Include in document order.
+   */
+  void expect(List<String> hrefs) {
+    for (String href : hrefs) {
+      String key = MultipartIndex.normalizeContentId(href);
+      Integer count = references.get(key);
+      references.put(key, (count == null) ? 1 : count + 1);
+    }
+    // parts buffered before the root that nothing refers to are not needed
+    Iterator<Map.Entry<String, ChunkBuffer>> it = buffered.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, ChunkBuffer> entry = it.next();
+      if (!references.containsKey(entry.getKey())) {
+        entry.getValue().release();
+        it.remove();
+      }
+    }
+  }
+
+  private String check(PartInput part) {
+    String ctype = part.getContentType();
+    if (ctype == null) {
+      throw new IllegalStateException("no content-type found (attachment)");
+    }
+    if (!acceptableType.test(ctype)) {
+      throw new IllegalStateException(
+          String.format("unexpected content-type for attachment (%s)", ctype));
+    }
+    String cid = part.getHeaderField("content-id");
+    return (cid == null) ? null : MultipartIndex.normalizeContentId(cid);
+  }
+
+  private ChunkBuffer buffer(PartInput part) throws IOException {
+    String cid = check(part);
+    if (cid == null) {
+      // nothing can refer to it
+      return null;
+    }
+    if (buffered.containsKey(cid)) {
+      throw new IllegalStateException(String.format("duplicate Content-ID (%s)", cid));
+    }
+    ChunkBuffer body = new ChunkBuffer().readFrom(part.getInputStream());
+    buffered.put(cid, body);
+    return body;
+  }
+
+  private void skip(PartInput part) throws IOException {
+    check(part);
+    InputStream in = part.getInputStream();
+    byte[] buf = IOUtil.borrowBuffer();
+    try {
+      while (in.read(buf) != -1) {
+        // discard
+      }
+    } finally {
+      IOUtil.releaseBuffer(buf);
+    }
+  }
+
+  // the number of parts held in memory now, for tests
+  int bufferedParts() {
+    return buffered.size();
+  }
+
+  // The last reference to a buffered part takes its chunks, and gives
+  // them back to the pool once read; earlier ones read a view.
+  private InputStream read(String key, ChunkBuffer body) {
+    Integer count = references.get(key);
+    if (count == null || count.intValue() <= 1) {
+      buffered.remove(key);
+      references.remove(key);
+      return body.toInputStream();
+    }
+    references.put(key, count - 1);
+    return body.newInputStream();
+  }
+
+  /**
+   * Open the part that an xop:Include refers to. The stream returned by the previous call must
+   * have been read to the end, if it was streamed from the message.
+   *
+   * @param href the href of the xop:Include, such as cid:image@insurance.com.
+   * @return the body of the part.
+   */
+  InputStream open(String href) throws IOException {
+    String key = MultipartIndex.normalizeContentId(href);
+    ChunkBuffer body = buffered.get(key);
+    if (body != null) {
+      return read(key, body);
+    }
+    PartInput part;
+    while ((part = mpi.nextPart()) != null) {
+      String cid = part.getHeaderField("content-id");
+      if (cid != null && key.equals(MultipartIndex.normalizeContentId(cid))) {
+        Integer count = references.get(key);
+        if (count == null || count.intValue() <= 1) {
+          check(part);
+          return part.getInputStream();
+        }
+        return read(key, buffer(part));
+      }
+      if (cid != null && references.containsKey(MultipartIndex.normalizeContentId(cid))) {
+        buffer(part);
+      } else {
+        // nothing refers to it, so it is not kept
+        skip(part);
+      }
+    }
+    throw new IllegalStateException(String.format("no part found for %s", href));
+  }
+
+  /**
+   * Join the segments of the root part with the base64 encoding of the parts between them. The
+   * first part is opened now, so that problems with it are reported here; the others are opened
+   * as the stream is read, and problems with them are reported as an IOException.
+   *
+   * @param split the XML around each xop:Include, and the href of each. It is released once
+   *     the stream has been read to the end.
+   * @return the embedded document.
+   */
+  InputStream embed(XopSplitter.Result split) throws IOException {
+    List<String> hrefs = split.getHrefs();
+    expect(hrefs);
+    InputStream first = hrefs.isEmpty() ? null : new Base64InputStream(open(hrefs.get(0)));
+    return new EmbeddedStream(split, first);
+  }
+
+  /** Reads the segments and the encoded parts in turn. */
+  private class EmbeddedStream extends InputStream {
+    private final XopSplitter.Result split;
+    private final List<InputStream> segments;
+    private final List<String> hrefs;
+    private InputStream current;
+    private InputStream pending;
+    // the next segment or part, counting both: segment i is 2i, part i is 2i+1
+    private int next;
+
+    EmbeddedStream(XopSplitter.Result split, InputStream first) {
+      this.split = split;
+      this.segments = split.getSegments();
+      this.hrefs = split.getHrefs();
+      this.pending = first;
+    }
+
+    private boolean advance() throws IOException {
+      if (next >= 2 * hrefs.size() + 1) {
+        if (next++ == 2 * hrefs.size() + 1) {
+          split.release();
+        }
+        current = null;
+        return false;
+      }
+      int i = next / 2;
+      if (next % 2 == 0) {
+        current = segments.get(i);
+      } else if (pending != null) {
+        current = pending;
+        pending = null;
+      } else {
+        try {
+          current = new Base64InputStream(open(hrefs.get(i)));
+        } catch (IllegalStateException e) {
+          throw new IOException(e.getMessage(), e);
+        }
+      }
+      next++;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (current != null || advance()) {
+        int b = current.read();
+        if (b != -1) {
+          return b;
+        }
+        current = null;
+      }
+      return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (current != null || advance()) {
+        int n = current.read(b, off, len);
+        if (n > 0) {
+          return n;
+        }
+        current = null;
+      }
+      return -1;
+    }
+  }
+}
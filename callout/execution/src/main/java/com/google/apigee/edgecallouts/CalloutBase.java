@@ -16,7 +16,7 @@
 package com.google.apigee.edgecallouts;
 
 import com.apigee.flow.message.MessageContext;
-import java.io.ByteArrayOutputStream;
+import com.google.apigee.IOUtil;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -139,15 +139,7 @@ public abstract class CalloutBase {
   }
 
   public static byte[] streamToByteArray(InputStream is) throws IOException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    int nRead;
-    byte[] data = new byte[1024];
-    while ((nRead = is.read(data, 0, data.length)) != -1) {
-      buffer.write(data, 0, nRead);
-    }
-
-    buffer.flush();
-    return buffer.toByteArray();
+    return IOUtil.readAllBytes(is);
   }
 
   protected static String getStackTraceAsString(Throwable t) {
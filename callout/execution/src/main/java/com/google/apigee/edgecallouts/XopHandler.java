@@ -22,30 +22,57 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.github.danieln.multipart.MultipartIndex;
 import com.github.danieln.multipart.MultipartInput;
 import com.github.danieln.multipart.MultipartOutput;
 import com.github.danieln.multipart.PartInput;
 import com.github.danieln.multipart.PartOutput;
+import com.google.apigee.ChunkBuffer;
+import com.google.apigee.DocumentCache;
+import com.google.apigee.DocumentFetcher;
+import com.google.apigee.HttpFetcher;
 import com.google.apigee.IOUtil;
+import com.google.apigee.xml.ElementFilter;
+import com.google.apigee.xml.EventCollector;
+import com.google.apigee.xml.SchemaValidator;
+import com.google.apigee.xml.XPathEditor;
 import com.google.apigee.xml.XPathEvaluator;
+import com.google.apigee.xml.XPathExtractor;
 import com.google.apigee.xml.XmlUtils;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import com.google.apigee.xml.XopOptimizer;
+import com.google.apigee.xml.XopSplitter;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import javax.xml.namespace.QName;
 import javax.xml.xpath.XPathConstants;
 
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestTemplate;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -54,10 +81,101 @@ public class XopHandler extends CalloutBase implements Execution {
   private static final boolean wantStringDefault = true;
   private static final XopAction DEFAULT_ACTION = XopAction.EDIT_1;
   private static final Base64.Encoder b64Encoder = Base64.getEncoder();
+  private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  private static final int DEFAULT_READ_TIMEOUT = 30000;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+  private static final long DEFAULT_CACHE_TTL = 300;
+  private static final long DEFAULT_COALESCE_TIMEOUT = 30000;
+  private static final long DEFAULT_FETCH_DEADLINE = 60000;
+  private static final int MAX_DOCUMENTS = 100;
+  private static final int FETCH_THREADS = 16;
+  private static final int MAX_QUEUED_FETCHES = 1000;
   private static final List<String> DEFAULT_PART1_CTYPES =
     Arrays.asList("application/soap+xml", "application/xop+xml", "text/xml");
   private static final List<String> DEFAULT_PART2_CTYPES =
     Arrays.asList("application/zip","application/octet-stream","image/jpeg","image/png","application/pdf");
+  private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String WSSE_NS =
+    "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
+  private static final ElementFilter usernameTokenFilter =
+    new ElementFilter(
+        new QName(SOAP11_NS, "Envelope"),
+        new QName(SOAP11_NS, "Header"),
+        new QName(WSSE_NS, "Security"),
+        new QName(WSSE_NS, "UsernameToken"));
+  private static final XopSplitter xopSplitter = new XopSplitter();
+  private static final XPathEvaluator includeEvaluator = new XPathEvaluator();
+  private static final XPathEvaluator usernameTokenEvaluator = new XPathEvaluator();
+
+  // compiled extract-xpaths, by namespaces and expressions
+  private static final Map<String, XPathExtractor> extractors =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, XPathExtractor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExtractor> eldest) {
+              return size() > 64;
+            }
+          });
+
+  // compiled schemas, by their locations
+  private static final Map<String, SchemaValidator> validators =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, SchemaValidator>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SchemaValidator> eldest) {
+              return size() > 16;
+            }
+          });
+
+  // http clients, by timeouts and connection limit
+  private static final Map<String, HttpFetcher> fetchers =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, HttpFetcher>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HttpFetcher> eldest) {
+              return size() > 16;
+            }
+          });
+
+  // runs the fetches of documentId lists; the threads mostly wait on the network
+  private static final ExecutorService fetchPool = newFetchPool();
+
+  // fetched documents, by the size of the cache
+  private static final Map<String, DocumentCache> documentCaches =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, DocumentCache>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DocumentCache> eldest) {
+              return size() > 16;
+            }
+          });
+
+  private static ExecutorService newFetchPool() {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            FETCH_THREADS,
+            FETCH_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED_FETCHES),
+            r -> {
+              Thread thread = new Thread(r, "xop-fetch-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  static {
+    includeEvaluator.registerNamespace("xop", XopSplitter.XOP_NS);
+    usernameTokenEvaluator.registerNamespace("soap", SOAP11_NS);
+    usernameTokenEvaluator.registerNamespace("wsse", WSSE_NS);
+  }
+
+  // the edit.N properties, compiled on first use
+  private volatile XPathEditor editor;
 
   public XopHandler(Map properties) {
     super(properties);
@@ -67,6 +185,9 @@ public class XopHandler extends CalloutBase implements Execution {
     EDIT_1,
     EXTRACT_SOAP,
     TRANSFORM_TO_EMBEDDED,
+    EMBEDDED_TO_XOP,
+    BUILD_XOP,
+    EDIT_XPATH,
     UNSPECIFIED,
     GET_BASE64STR;
 
@@ -137,6 +258,360 @@ public class XopHandler extends CalloutBase implements Execution {
     return source;
   }
 
+  private boolean getStreaming(MessageContext msgCtxt) throws Exception {
+    String streaming = getSimpleOptionalProperty("streaming", msgCtxt);
+    return (streaming == null) || Boolean.parseBoolean(streaming);
+  }
+
+  // properties like xmlns:soap, giving the namespaces for the prefixes in
+  // configured names
+  private Map<String, String> getNamespaces() {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : this.properties.entrySet()) {
+      if (entry.getKey().startsWith("xmlns:")) {
+        namespaces.put(entry.getKey().substring(6), entry.getValue().trim());
+      }
+    }
+    return namespaces;
+  }
+
+  // an unprefixed name has no namespace, and matches the local name in any namespace
+  private static QName toQName(String name, Map<String, String> namespaces) {
+    int colon = name.indexOf(':');
+    if (colon < 0) {
+      return new QName(name);
+    }
+    String prefix = name.substring(0, colon);
+    String ns = namespaces.get(prefix);
+    if (ns == null) {
+      throw new IllegalStateException(
+          String.format("configuration error: no namespace for prefix (%s)", prefix));
+    }
+    return new QName(ns, name.substring(colon + 1), prefix);
+  }
+
+  // the Content-Length of the message, or -1 if it has none
+  private static long getContentLength(Message message) {
+    String contentLength = message.getHeader("content-length");
+    if (contentLength == null || !contentLength.trim().matches("[0-9]{1,18}")) {
+      return -1;
+    }
+    return Long.parseLong(contentLength.trim());
+  }
+
+  private static String newContentId() {
+    return UUID.randomUUID().toString() + "@apigee";
+  }
+
+  private String getEnvelope(MessageContext msgCtxt) throws Exception {
+    String envelope = getSimpleOptionalProperty("envelope", msgCtxt);
+    if (envelope != null) {
+      return envelope;
+    }
+    String varname = getSimpleOptionalProperty("envelope-variable", msgCtxt);
+    if (varname == null) {
+      throw new IllegalStateException(
+          "configuration error: specify one of envelope or envelope-variable");
+    }
+    Object value = msgCtxt.getVariable(varname);
+    if (value == null) {
+      throw new IllegalStateException(
+          String.format("configuration error: %s resolves to null", varname));
+    }
+    return resolveVariableReferences(value.toString(), msgCtxt);
+  }
+
+  private XPathExtractor getExtractor(MessageContext msgCtxt) {
+    List<String> xpaths = getList(msgCtxt, "extract-xpaths", null);
+    if (xpaths == null) {
+      return null;
+    }
+    Map<String, String> namespaces = getNamespaces();
+    String key = new TreeMap<String, String>(namespaces) + "\n" + String.join("\n", xpaths);
+    XPathExtractor extractor = extractors.get(key);
+    if (extractor == null) {
+      try {
+        extractor = new XPathExtractor(xpaths, namespaces);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("configuration error: " + e.getMessage());
+      }
+      extractors.put(key, extractor);
+    }
+    return extractor;
+  }
+
+  // each value found for extract-xpaths, by the position of its expression
+  private void setExtractedValues(List<String> values, MessageContext msgCtxt) {
+    int found = 0;
+    for (int i = 0; i < values.size(); i++) {
+      if (values.get(i) != null) {
+        msgCtxt.setVariable(varName("xpath." + (i + 1)), values.get(i));
+        found++;
+      }
+    }
+    msgCtxt.setVariable(varName("xpath_found"), Integer.toString(found));
+  }
+
+  // A Schema is compiled once for its locations and shared by every policy
+  // and thread that names them.
+  private SchemaValidator getValidator(MessageContext msgCtxt) {
+    List<String> locations = getList(msgCtxt, "schema", null);
+    if (locations == null) {
+      return null;
+    }
+    String key = String.join("\n", locations);
+    SchemaValidator validator = validators.get(key);
+    if (validator == null) {
+      try {
+        validator = SchemaValidator.compile(locations);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("configuration error: " + e.getMessage());
+      }
+      validators.put(key, validator);
+    }
+    return validator;
+  }
+
+  private static SchemaValidator.Check newCheck(SchemaValidator validator) {
+    return (validator == null) ? null : validator.newCheck();
+  }
+
+  // For the DOM fallback: the root part is read into memory anyway, so
+  // look for the values in it and validate it first, in one pass, then
+  // hand back the same bytes.
+  private InputStream collectBeforeParse(
+      InputStream in, XPathExtractor extractor, SchemaValidator validator, MessageContext msgCtxt)
+      throws Exception {
+    if (extractor == null && validator == null) {
+      return in;
+    }
+    ChunkBuffer xml = new ChunkBuffer().readFrom(in);
+    XPathExtractor.Collector collector = (extractor == null) ? null : extractor.newCollector();
+    XmlUtils.scan(xml.newInputStream(), EventCollector.both(collector, newCheck(validator)));
+    if (collector != null) {
+      setExtractedValues(collector.getValues(), msgCtxt);
+    }
+    return xml.toInputStream();
+  }
+
+  // The edits are compiled once for this policy and reused by every
+  // request. The paths are taken as written; variable references in the
+  // content of an edit are resolved for each request.
+  private XPathEditor getEditor() {
+    XPathEditor e = editor;
+    if (e == null) {
+      try {
+        List<XPathEditor.Edit> edits = new ArrayList<XPathEditor.Edit>();
+        for (int i = 1; this.properties.containsKey("edit." + i); i++) {
+          edits.add(XPathEditor.Edit.parse(this.properties.get("edit." + i)));
+        }
+        if (edits.isEmpty()) {
+          throw new IllegalStateException("configuration error: specify edit.1");
+        }
+        e = new XPathEditor(edits, getNamespaces());
+      } catch (IllegalArgumentException exc) {
+        throw new IllegalStateException("configuration error: " + exc.getMessage());
+      }
+      editor = e;
+    }
+    return e;
+  }
+
+  // how a DOM is written back out, compact by default
+  private XmlUtils.SerializeOptions getSerializeOptions(MessageContext msgCtxt) throws Exception {
+    String pretty = getSimpleOptionalProperty("pretty-print", msgCtxt);
+    String declaration = getSimpleOptionalProperty("xml-declaration", msgCtxt);
+    if (pretty == null && declaration == null) {
+      return XmlUtils.SerializeOptions.COMPACT;
+    }
+    return new XmlUtils.SerializeOptions(
+        Boolean.parseBoolean(pretty), Boolean.parseBoolean(declaration));
+  }
+
+  private long getLongProperty(String name, long defaultValue, MessageContext msgCtxt)
+      throws Exception {
+    String value = getSimpleOptionalProperty(name, msgCtxt);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(
+          String.format("configuration error: %s is not a number (%s)", name, value));
+    }
+  }
+
+  private int getIntProperty(String name, int defaultValue, MessageContext msgCtxt)
+      throws Exception {
+    long value = getLongProperty(name, defaultValue, msgCtxt);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new IllegalStateException(
+          String.format("configuration error: %s is out of range (%d)", name, value));
+    }
+    return (int) value;
+  }
+
+  // One client for each distinct set of timeouts and limits, shared by
+  // every policy configured alike. Idle connections are kept by the JVM,
+  // for all of them.
+  private HttpFetcher getFetcher(MessageContext msgCtxt) throws Exception {
+    int connectTimeout = getIntProperty("connect-timeout", DEFAULT_CONNECT_TIMEOUT, msgCtxt);
+    int readTimeout = getIntProperty("read-timeout", DEFAULT_READ_TIMEOUT, msgCtxt);
+    int maxPerHost =
+        getIntProperty("max-connections-per-host", DEFAULT_MAX_CONNECTIONS_PER_HOST, msgCtxt);
+    String key = connectTimeout + "," + readTimeout + "," + maxPerHost;
+    HttpFetcher fetcher = fetchers.get(key);
+    if (fetcher == null) {
+      try {
+        fetcher = new HttpFetcher(connectTimeout, readTimeout, maxPerHost);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("configuration error: " + e.getMessage());
+      }
+      HttpFetcher existing = fetchers.putIfAbsent(key, fetcher);
+      if (existing != null) {
+        fetcher = existing;
+      }
+    }
+    return fetcher;
+  }
+
+  // One cache for each size, shared by every policy that names it, or null
+  // when the policy does not cache.
+  private DocumentCache getDocumentCache(MessageContext msgCtxt) throws Exception {
+    long maxBytes = getLongProperty("cache-max-bytes", 0, msgCtxt);
+    if (maxBytes < 0) {
+      throw new IllegalStateException(
+          String.format("configuration error: cache-max-bytes is negative (%d)", maxBytes));
+    }
+    if (maxBytes == 0) {
+      return null;
+    }
+    String key = Long.toString(maxBytes);
+    DocumentCache cache = documentCaches.get(key);
+    if (cache == null) {
+      cache = new DocumentCache(maxBytes);
+      DocumentCache existing = documentCaches.putIfAbsent(key, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    return cache;
+  }
+
+  // The settings of get_base64str for this request. Nothing in it refers to
+  // the request, so its fetches can run on other threads.
+  private DocumentFetcher getDocumentFetcher(MessageContext msgCtxt) throws Exception {
+    long ttl = getLongProperty("cache-ttl", DEFAULT_CACHE_TTL, msgCtxt);
+    if (ttl < 0) {
+      throw new IllegalStateException(
+          String.format("configuration error: cache-ttl is negative (%d)", ttl));
+    }
+    boolean revalidate =
+        Boolean.parseBoolean(getSimpleOptionalProperty("cache-revalidate", msgCtxt));
+    long coalesceTimeout = getLongProperty("coalesce-timeout", DEFAULT_COALESCE_TIMEOUT, msgCtxt);
+    if (coalesceTimeout <= 0) {
+      throw new IllegalStateException(
+          String.format(
+              "configuration error: coalesce-timeout must be positive (%d)", coalesceTimeout));
+    }
+    return new DocumentFetcher(
+        getFetcher(msgCtxt), getDocumentCache(msgCtxt), ttl, revalidate, coalesceTimeout);
+  }
+
+  private void setCacheVariables(DocumentCache cache, MessageContext msgCtxt) {
+    if (cache == null) {
+      return;
+    }
+    msgCtxt.setVariable(varName("cache_hits"), Long.toString(cache.getHits()));
+    msgCtxt.setVariable(varName("cache_misses"), Long.toString(cache.getMisses()));
+    msgCtxt.setVariable(varName("cache_evictions"), Long.toString(cache.getEvictions()));
+    msgCtxt.setVariable(varName("cache_bytes"), Long.toString(cache.getBytes()));
+  }
+
+  // Fetch every document of a list at once, on the shared pool, within one
+  // deadline for the whole list. A fetch still running at the deadline, or at
+  // the first failure, has its connection closed, and one still queued then
+  // does nothing, so a slow or failed list does not hold the pool. Only a
+  // fetch that other requests are waiting on runs on after a failure, for
+  // them, up to the deadline.
+  private DocumentFetcher.Result[] fetchAll(
+      DocumentFetcher documents,
+      List<String> urls,
+      Map<String, String> headers,
+      MessageContext msgCtxt)
+      throws Exception {
+    long deadline = getLongProperty("fetch-deadline", DEFAULT_FETCH_DEADLINE, msgCtxt);
+    if (deadline <= 0) {
+      throw new IllegalStateException(
+          String.format("configuration error: fetch-deadline must be positive (%d)", deadline));
+    }
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+    long giveUp = System.currentTimeMillis() + deadline;
+    HttpFetcher.Cancellation group = new HttpFetcher.Cancellation(giveUp);
+    CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(fetchPool);
+    DocumentFetcher.Result[] results = new DocumentFetcher.Result[urls.size()];
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    try {
+      for (int i = 0; i < urls.size(); i++) {
+        final int index = i;
+        try {
+          futures.add(
+              completion.submit(
+                  () -> {
+                    if (!group.isCancelled() && System.currentTimeMillis() < giveUp) {
+                      results[index] = documents.fetch(urls.get(index), headers, group);
+                    }
+                    return index;
+                  }));
+        } catch (RejectedExecutionException e) {
+          throw new IllegalStateException(
+              String.format("too many document fetches queued (%d)", MAX_QUEUED_FETCHES));
+        }
+      }
+      for (int done = 0; done < urls.size(); done++) {
+        Future<Integer> next = completion.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+        Throwable cause = null;
+        if (next != null) {
+          try {
+            if (results[next.get()] != null) {
+              continue;
+            }
+          } catch (ExecutionException e) {
+            cause = e.getCause();
+          }
+        }
+        // not fetched in time, whether it was still queued, still running,
+        // or cut off at the deadline
+        if (cause == null || System.currentTimeMillis() >= giveUp) {
+          throw new IllegalStateException(
+              String.format(
+                  "timed out after %d ms fetching %d documents", deadline, urls.size()));
+        }
+        throw new IllegalStateException(cause.getMessage(), cause);
+      }
+      return results;
+    } finally {
+      // The fetches still queued or running are not wanted. They are not
+      // interrupted: an interrupt does not stop a blocking read, and could
+      // fail a fetch that other requests are waiting on. Closing their
+      // connections does stop them; the group spares the shared ones.
+      group.cancel();
+      for (Future<Integer> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  private int getXopThreshold(MessageContext msgCtxt) throws Exception {
+    int threshold = getIntProperty("xop-threshold", 0, msgCtxt);
+    if (threshold < 0) {
+      throw new IllegalStateException(
+          String.format("configuration error: xop-threshold must not be negative (%d)", threshold));
+    }
+    return threshold;
+  }
+
   private static void remove(Node currentNode) {
     // if the adjacent node is empty text, delete it
     Node prevSibling = currentNode.getPreviousSibling();
@@ -172,46 +647,45 @@ public class XopHandler extends CalloutBase implements Execution {
 
   // xmlns:xop='http://www.w3.org/2004/08/xop/include'
   // <xop:Include href="cid:uuid-here"/>
-  private static String embedAttachment(Document document, InputStream binaryIn) throws Exception {
-    XPathEvaluator xpe = new XPathEvaluator();
-    xpe.registerNamespace("xop", "http://www.w3.org/2004/08/xop/include");
+  private static void embedAttachments(Document document, AttachmentResolver resolver)
+      throws Exception {
     String xpath = "//xop:Include";
-    NodeList nodes = (NodeList) xpe.evaluate(xpath, document, XPathConstants.NODESET);
+    NodeList nodes = (NodeList) includeEvaluator.evaluate(xpath, document, XPathConstants.NODESET);
     if (nodes.getLength() == 0) {
       throw new IllegalStateException("could not find xop:Include element in the XML document");
     }
-    if (nodes.getLength() != 1) {
-      throw new IllegalStateException(
-          "found more than one xop:Include element in the XML document");
+    List<String> hrefs = new ArrayList<String>();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      hrefs.add(((Element) nodes.item(i)).getAttribute("href"));
     }
+    resolver.expect(hrefs);
 
-    // replace the Include element with the referenced text (base64 encoded)
-    Node targetNode = nodes.item(0);
-    Node newNode =
-        document.createTextNode(b64Encoder.encodeToString(IOUtil.readAllBytes(binaryIn)));
-    targetNode.getParentNode().replaceChild(newNode, targetNode);
+    // replace each Include element with the referenced text (base64 encoded)
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node targetNode = nodes.item(i);
+      Node newNode =
+          document.createTextNode(
+              b64Encoder.encodeToString(IOUtil.readAllBytes(resolver.open(hrefs.get(i)))));
+      targetNode.getParentNode().replaceChild(newNode, targetNode);
+    }
 
     // xsi:type="base64binary"
     // Attr attr = document.createAttribute(parts[0]);
     // attr.setValue(parts[1]);
-
-    return XmlUtils.toString(document, true);
   }
 
-  private static String removeUsernameToken(InputStream in1) throws Exception {
+  private static void removeUsernameToken(
+      InputStream in1, OutputStream out, XmlUtils.SerializeOptions options) throws Exception {
     Document document = XmlUtils.parseXml(in1);
 
-    XPathEvaluator xpe = new XPathEvaluator();
-    xpe.registerNamespace("soap", "http://schemas.xmlsoap.org/soap/envelope/");
-    xpe.registerNamespace(
-        "wsse",
-        "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd");
     String xpath = "/soap:Envelope/soap:Header/wsse:Security/wsse:UsernameToken";
-    NodeList nodes = (NodeList) xpe.evaluate(xpath, document, XPathConstants.NODESET);
-    if (nodes.getLength() == 1) {
-      remove(nodes.item(0));
+    NodeList nodes =
+        (NodeList) usernameTokenEvaluator.evaluate(xpath, document, XPathConstants.NODESET);
+    // every token goes, as with the streaming filter, so both give the same document
+    for (int i = 0; i < nodes.getLength(); i++) {
+      remove(nodes.item(i));
     }
-    return XmlUtils.toString(document, true);
+    XmlUtils.writeTo(document, out, options);
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
@@ -225,110 +699,373 @@ public class XopHandler extends CalloutBase implements Execution {
       //partInput2.getInputStream()
       //partInput2.getInputStream()
 
-      if (calloutAction == XopAction.GET_BASE64STR)
-      {
-//        msgCtxt.setVariable(
-//                varName("base64Encoded"), new String(b64Encoder.encode(IOUtil.readAllBytes(msgCtxt.getMessage().getContentAsStream()))));
-
-//        msgCtxt.setVariable(
-//                varName("base64Encoded"), new String(b64Encoder.encodeToString(msgCtxt.getMessage().getContent().getBytes())));
-
-//        String apikey= message.getHeader("message.header.apiKey");
-//        String documentID=message.getHeader("message.header.documentId");
-//        String apikey1=msgCtxt.getMessage().getHeader("message.header.apiKey");
-//        String documentID1=msgCtxt.getMessage().getHeader("message.header.documentId");
-//        String apikey2=msgCtxt.getVariable("apiKey");
-//        String documentID2=msgCtxt.getVariable("documentId");
-
-        RestTemplate restTemplate = new RestTemplate();
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("x-api-key", msgCtxt.getMessage().getHeader("apiKey"));
-
-        String documentID=message.getHeader("documentId");
-        String attachmentUrl=message.getHeader("attachmentURL");
-        final String baseUrl = attachmentUrl+documentID+"/body";
-// URI uri = new URI(baseUrl);
-        msgCtxt.setVariable(
-                varName("USEDURLJAVA"), baseUrl);
+      if (calloutAction == XopAction.GET_BASE64STR) {
+        // the documents are fetched with a shared, keep-alive client, and
+        // encoded as they are read
+        String documentID = message.getHeader("documentId");
+        String attachmentUrl = message.getHeader("attachmentURL");
+        Map<String, String> headers =
+            Collections.singletonMap("x-api-key", msgCtxt.getMessage().getHeader("apiKey"));
+        DocumentFetcher documents = getDocumentFetcher(msgCtxt);
 
-        //String result = restTemplate.getForObject(baseUrl, String.class);
+        if (documentID == null || documentID.indexOf(',') == -1) {
+          final String baseUrl = attachmentUrl + documentID + "/body";
+          msgCtxt.setVariable(varName("USEDURLJAVA"), baseUrl);
+          DocumentFetcher.Result result = documents.fetch(baseUrl, headers);
+          msgCtxt.setVariable(varName("base64Encoded"), result.getValue());
+          if (result.getCacheStatus() != null) {
+            msgCtxt.setVariable(varName("cache_status"), result.getCacheStatus());
+          }
+          setCacheVariables(documents.getCache(), msgCtxt);
+          return ExecutionResult.SUCCESS;
+        }
 
+        // a list of documents, fetched at once
+        List<String> urls =
+            Arrays.stream(documentID.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .map(id -> attachmentUrl + id + "/body")
+                .collect(Collectors.toList());
+        if (urls.isEmpty()) {
+          throw new IllegalStateException("no documentId in the list");
+        }
+        if (urls.size() > MAX_DOCUMENTS) {
+          throw new IllegalStateException(
+              String.format("too many documents (%d), at most %d", urls.size(), MAX_DOCUMENTS));
+        }
+        DocumentFetcher.Result[] results = fetchAll(documents, urls, headers, msgCtxt);
+        for (int i = 0; i < results.length; i++) {
+          msgCtxt.setVariable(varName("USEDURLJAVA." + (i + 1)), urls.get(i));
+          msgCtxt.setVariable(varName("base64Encoded." + (i + 1)), results[i].getValue());
+          if (results[i].getCacheStatus() != null) {
+            msgCtxt.setVariable(varName("cache_status." + (i + 1)), results[i].getCacheStatus());
+          }
+        }
+        msgCtxt.setVariable(varName("document_count"), Integer.toString(results.length));
+        msgCtxt.setVariable(varName("USEDURLJAVA"), urls.get(0));
+        msgCtxt.setVariable(varName("base64Encoded"), results[0].getValue());
+        setCacheVariables(documents.getCache(), msgCtxt);
+        return ExecutionResult.SUCCESS;
+      }
 
+      String originalContentType = message.getHeader("content-type");
+      msgCtxt.setVariable(varName("action"), calloutAction.name().toLowerCase());
 
-        HttpEntity<String> entity = new HttpEntity<String>(null, headers);
+      List<String> acceptablePart1ContentTypes = getAcceptablePart1ContentTypes(msgCtxt);
 
-        ResponseEntity<byte[]> respEntity = restTemplate.exchange(baseUrl, HttpMethod.GET, entity, byte[].class);
-        byte[] content = respEntity.getBody();
-        String base64Encoded = Base64.getEncoder().encodeToString(content);
-        msgCtxt.setVariable(
-                varName("base64Encoded"), base64Encoded);
+      if (calloutAction == XopAction.BUILD_XOP) {
+        // the source content is the attachment, it is streamed through as is
+        String attachmentType = originalContentType;
+        if (attachmentType == null) {
+          attachmentType = "application/octet-stream";
+        }
+        List<String> acceptableAttachmentContentTypes = getAcceptableAttachmentContentTypes(msgCtxt);
+        if (!acceptableCtype(acceptableAttachmentContentTypes, attachmentType)) {
+          throw new IllegalStateException(
+              String.format("unexpected content-type for attachment (%s)", attachmentType));
+        }
+
+        // 1. the envelope refers to the attachment through {xop_attachment_cid}
+        String attachmentId = newContentId();
+        msgCtxt.setVariable(varName("attachment_cid"), attachmentId);
+        String envelope = getEnvelope(msgCtxt);
+        if (!envelope.contains("cid:" + attachmentId)) {
+          throw new IllegalStateException("the envelope does not refer to the attachment");
+        }
+        String startInfo = getSimpleOptionalProperty("start-info", msgCtxt);
+        if (startInfo == null) {
+          startInfo = "text/xml";
+        }
+
+        // 2. write everything up to the attachment body, and the closing
+        // delimiter that follows it
+        String rootId = newContentId();
+        byte[] envelopeBytes = envelope.getBytes(StandardCharsets.UTF_8);
+        ChunkBuffer out = new ChunkBuffer();
+        MultipartOutput mpo = new MultipartOutput(out, "related");
+        PartOutput rootPart = mpo.newPart();
+        rootPart.setContentType(
+            String.format("application/xop+xml; charset=UTF-8; type=\"%s\"", startInfo));
+        rootPart.setHeaderField("Content-Transfer-Encoding", "8bit");
+        rootPart.setHeaderField("Content-ID", "<" + rootId + ">");
+        rootPart.getOutputStream().write(envelopeBytes);
+        PartOutput attachmentPart = mpo.lastPart();
+        attachmentPart.setContentType(attachmentType);
+        attachmentPart.setHeaderField("Content-Transfer-Encoding", "binary");
+        attachmentPart.setHeaderField("Content-ID", "<" + attachmentId + ">");
+        long contentLength = getContentLength(message);
+        if (contentLength >= 0) {
+          attachmentPart.setHeaderField("Content-Length", Long.toString(contentLength));
+        }
+        attachmentPart.getOutputStream();
+        long headLength = out.size();
+        mpo.close();
+
+        // 3. set the package as the message, the attachment is read from the
+        // original content as the new content is consumed
+        message.setContent(
+            new SequenceInputStream(
+                Collections.enumeration(
+                    Arrays.asList(
+                        out.newInputStream(0, headLength),
+                        message.getContentAsStream(),
+                        out.newInputStream(headLength, out.size())))));
+        message.setHeader(
+            "content-type",
+            String.format(
+                "%s; type=\"application/xop+xml\"; start=\"<%s>\"; start-info=\"%s\"",
+                mpo.getContentType(), rootId, startInfo));
 
         return ExecutionResult.SUCCESS;
       }
 
-      String originalContentType = message.getHeader("content-type");
-      MultipartInput mpi = new MultipartInput(message.getContentAsStream(), originalContentType);
+      if (calloutAction == XopAction.EMBEDDED_TO_XOP) {
+        // the source is a plain XML document, not a multipart message
+        if (originalContentType == null) {
+          throw new IllegalStateException("no content-type found");
+        }
+        if (!acceptableCtype(acceptablePart1ContentTypes, originalContentType)) {
+          throw new IllegalStateException(
+              String.format("unexpected content-type (%s)", originalContentType));
+        }
+        List<String> elements = getList(msgCtxt, "xop-elements", null);
+        if (elements == null) {
+          throw new IllegalStateException("configuration error: xop-elements resolves to an empty string");
+        }
+        Map<String, String> namespaces = getNamespaces();
+        List<QName> names = new ArrayList<QName>();
+        for (String element : elements) {
+          names.add(toQName(element, namespaces));
+        }
+        XopOptimizer optimizer = new XopOptimizer(names, getXopThreshold(msgCtxt));
 
-      Map<String, String> params = MultipartInput.parseParams(originalContentType);
-      if (params.get("boundary") == null) {
-        throw new IllegalStateException("no boundary found");
-      }
+        // 1. decode the chosen elements into attachments
+        ChunkBuffer rootXml = new ChunkBuffer();
+        List<XopOptimizer.Attachment> attachments =
+            optimizer.optimize(message.getContentAsStream(), rootXml);
+        msgCtxt.setVariable(varName("attachment_count"), Integer.toString(attachments.size()));
+        if (attachments.isEmpty()) {
+          message.setContent(rootXml.toInputStream());
+          return ExecutionResult.SUCCESS;
+        }
 
+        // 2. write the package, the root part first
+        String mediaType = originalContentType.split(";", 2)[0].trim();
+        String rootId = newContentId();
+        ChunkBuffer out = new ChunkBuffer();
+        MultipartOutput mpo = new MultipartOutput(out, "related");
+        PartOutput rootPart = mpo.newPart();
+        rootPart.setContentType(
+            String.format("application/xop+xml; charset=UTF-8; type=\"%s\"", mediaType));
+        rootPart.setHeaderField("Content-Transfer-Encoding", "8bit");
+        rootPart.setHeaderField("Content-ID", "<" + rootId + ">");
+        rootXml.writeTo(rootPart.getOutputStream());
+        rootXml.release();
+        for (XopOptimizer.Attachment attachment : attachments) {
+          PartOutput part = mpo.newPart();
+          part.setContentType(attachment.getContentType());
+          part.setHeaderField("Content-Transfer-Encoding", "binary");
+          part.setHeaderField("Content-ID", "<" + attachment.getContentId() + ">");
+          attachment.writeTo(part.getOutputStream());
+        }
+        mpo.close();
 
-      msgCtxt.setVariable(varName("action"), calloutAction.name().toLowerCase());
+        // 3. set the result as the message
+        message.setContent(out.toInputStream());
+        message.setHeader(
+            "content-type",
+            String.format(
+                "%s; type=\"application/xop+xml\"; start=\"<%s>\"; start-info=\"%s\"",
+                mpo.getContentType(), rootId, mediaType));
 
-      List<String> acceptablePart1ContentTypes = getAcceptablePart1ContentTypes(msgCtxt);
+        return ExecutionResult.SUCCESS;
+      }
 
-      if (calloutAction == XopAction.EDIT_1) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        MultipartOutput mpo = new MultipartOutput(out, originalContentType, params.get("boundary"));
+      if (calloutAction == XopAction.EDIT_XPATH) {
+        XPathEditor editor = getEditor();
+        SchemaValidator validator = getValidator(msgCtxt);
+        boolean streaming = getStreaming(msgCtxt);
+        XmlUtils.SerializeOptions options = getSerializeOptions(msgCtxt);
+        UnaryOperator<String> resolver = s -> resolveVariableReferences(s, msgCtxt);
+        if (originalContentType == null) {
+          throw new IllegalStateException("no content-type found");
+        }
+        String boundary = MultipartInput.parseParams(originalContentType).get("boundary");
+        if (boundary == null) {
+          // a plain XML message, edited as a whole
+          if (!acceptableCtype(acceptablePart1ContentTypes, originalContentType)) {
+            throw new IllegalStateException(
+                String.format("unexpected content-type (%s)", originalContentType));
+          }
+          ChunkBuffer edited = new ChunkBuffer();
+          int count =
+              editor.apply(
+                  message.getContentAsStream(),
+                  edited,
+                  resolver,
+                  options,
+                  streaming,
+                  newCheck(validator));
+          message.setContent(edited.toInputStream());
+          msgCtxt.setVariable(varName("edit_count"), Integer.toString(count));
+          return ExecutionResult.SUCCESS;
+        }
 
-        // 1. extract and transform the XML here
-        PartInput partInput1 = mpi.nextPart();
-        String ctype1 = partInput1.getContentType();
+        // 1. copy the parts before the root part as they are
+        MultipartInput mpi = new MultipartInput(message.getContentAsStream(), originalContentType);
+        String start = mpi.getParameter("start");
+        String rootId = (start == null) ? null : MultipartIndex.normalizeContentId(start);
+        ChunkBuffer out = new ChunkBuffer();
+        MultipartOutput mpo = new MultipartOutput(out, originalContentType, boundary);
+        PartInput rootPart;
+        while ((rootPart = mpi.nextPart()) != null) {
+          String cid = rootPart.getHeaderField("content-id");
+          if (rootId == null
+              || (cid != null && rootId.equals(MultipartIndex.normalizeContentId(cid)))) {
+            break;
+          }
+          PartOutput partOutput = mpo.newPart();
+          rootPart.copyHeadersTo(partOutput);
+          IOUtil.copy(rootPart.getInputStream(), partOutput.getOutputStream());
+        }
+        if (rootPart == null) {
+          throw new IllegalStateException(
+              (rootId == null) ? "no parts found" : String.format("no part found for start (%s)", start));
+        }
+        String ctype1 = rootPart.getContentType();
         if (ctype1 == null) {
-          throw new IllegalStateException("no content-type found (part1)");
+          throw new IllegalStateException("no content-type found (root part)");
         }
         if (!acceptableCtype(acceptablePart1ContentTypes, ctype1)) {
           throw new IllegalStateException(
-              String.format("unexpected content-type for part #1 (%s)", ctype1));
+              String.format("unexpected content-type for root part (%s)", ctype1));
         }
-        InputStream in1 = partInput1.getInputStream();
-        String transformedXml = removeUsernameToken(in1);
-        msgCtxt.setVariable(varName("transformed"), transformedXml);
 
-        PartOutput partOutput1 = mpo.newPart();
-        for (String headerName : partInput1.getHeaderNames()) {
-          partOutput1.setHeaderField(headerName, partInput1.getHeaderField(headerName));
+        // 2. edit the root part, keeping its headers, and fixing up its
+        // length if it had one
+        PartOutput rootOutput = mpo.newPart();
+        rootPart.copyHeadersTo(rootOutput);
+        int count;
+        if (rootPart.getContentLength() < 0) {
+          count =
+              editor.apply(
+                  rootPart.getInputStream(),
+                  rootOutput.getOutputStream(),
+                  resolver,
+                  options,
+                  streaming,
+                  newCheck(validator));
+        } else {
+          ChunkBuffer edited = new ChunkBuffer();
+          count =
+              editor.apply(
+                  rootPart.getInputStream(),
+                  edited,
+                  resolver,
+                  options,
+                  streaming,
+                  newCheck(validator));
+          rootOutput.setContentLength((int) edited.size());
+          edited.writeTo(rootOutput.getOutputStream());
+          edited.release();
         }
-        partOutput1.getOutputStream().write(transformedXml.getBytes(StandardCharsets.UTF_8));
+        msgCtxt.setVariable(varName("edit_count"), Integer.toString(count));
 
-        // 2. extract the attachment here
-        PartInput partInput2 = mpi.nextPart();
-        String ctype2 = partInput2.getContentType();
-        if (ctype2 == null) {
-          throw new IllegalStateException("no content-type found (part2)");
+        // 3. splice in the rest of the original message, unread
+        if (mpi.nextPart() == null) {
+          mpo.close();
+          message.setContent(out.toInputStream());
+        } else {
+          message.setContent(new SequenceInputStream(out.toInputStream(), mpi.getRemainingStream()));
         }
-        List<String> acceptableAttachmentContentTypes = getAcceptableAttachmentContentTypes(msgCtxt);
-        if (!acceptableCtype(acceptableAttachmentContentTypes, ctype2)) {
+        return ExecutionResult.SUCCESS;
+      }
+
+      Map<String, String> params = MultipartInput.parseParams(originalContentType);
+      if (params.get("boundary") == null) {
+        throw new IllegalStateException("no boundary found");
+      }
+
+      if (calloutAction == XopAction.EXTRACT_SOAP) {
+        // All parts are read in full, so index the message and locate the
+        // root part through the start parameter rather than by position.
+        MultipartIndex index =
+            new MultipartIndex(
+                ByteBuffer.wrap(
+                    IOUtil.readAllBytes(message.getContentAsStream(), getContentLength(message))),
+                originalContentType);
+        PartInput rootPart = index.getRootPart();
+        if (rootPart == null) {
+          throw new IllegalStateException("no parts found");
+        }
+        String ctype1 = rootPart.getContentType();
+        if (ctype1 == null) {
+          throw new IllegalStateException("no content-type found (root part)");
+        }
+        if (!acceptableCtype(acceptablePart1ContentTypes, ctype1)) {
           throw new IllegalStateException(
-              String.format("unexpected content-type for part #2 (%s)", ctype2));
+              String.format("unexpected content-type for root part (%s)", ctype1));
         }
-        PartOutput partOutput2 = mpo.newPart();
-        for (String headerName : partInput2.getHeaderNames()) {
-          partOutput2.setHeaderField(headerName, partInput2.getHeaderField(headerName));
+        msgCtxt.setVariable(
+            varName("extracted_xml"), StandardCharsets.UTF_8.decode(rootPart.getBody()).toString());
+        XPathExtractor extractor = getExtractor(msgCtxt);
+        SchemaValidator validator = getValidator(msgCtxt);
+        if (validator != null) {
+          // the values are found in the same pass as the validation
+          XPathExtractor.Collector collector =
+              (extractor == null) ? null : extractor.newCollector();
+          XmlUtils.scan(
+              rootPart.getInputStream(), EventCollector.both(collector, validator.newCheck()));
+          if (collector != null) {
+            setExtractedValues(collector.getValues(), msgCtxt);
+          }
+        } else if (extractor != null) {
+          // stops reading at the last value it needs
+          setExtractedValues(extractor.extract(rootPart.getInputStream()), msgCtxt);
         }
-        IOUtil.copy(partInput2.getInputStream(), partOutput2.getOutputStream());
 
-        // 3. concatenate the result and replace
-        mpo.close();
-        message.setContent(new ByteArrayInputStream(out.toByteArray()));
+        if (index.size() < 2) {
+          throw new IllegalStateException("no attachment found");
+        }
+        // every other part is an attachment, exposed by its Content-ID,
+        // or by its position if it has none
+        List<String> acceptableAttachmentContentTypes = getAcceptableAttachmentContentTypes(msgCtxt);
+        List<String> attachmentIds = new ArrayList<String>();
+        for (int i = 0; i < index.size(); i++) {
+          if (i == index.getRootIndex()) {
+            continue;
+          }
+          PartInput attachmentPart = index.getPart(i);
+          String ctype2 = attachmentPart.getContentType();
+          if (ctype2 == null) {
+            throw new IllegalStateException("no content-type found (attachment)");
+          }
+          if (!acceptableCtype(acceptableAttachmentContentTypes, ctype2)) {
+            throw new IllegalStateException(
+                String.format("unexpected content-type for attachment (%s)", ctype2));
+          }
+          String cid = attachmentPart.getHeaderField("content-id");
+          String id = (cid == null) ? Integer.toString(i) : MultipartIndex.normalizeContentId(cid);
+          String base64Encoded =
+              StandardCharsets.US_ASCII.decode(b64Encoder.encode(attachmentPart.getBody())).toString();
+          if (attachmentIds.isEmpty()) {
+            msgCtxt.setVariable(varName("base64Encoded"), base64Encoded);
+          }
+          msgCtxt.setVariable(varName("base64Encoded." + id), base64Encoded);
+          attachmentIds.add(id);
+        }
+        msgCtxt.setVariable(varName("attachment_count"), Integer.toString(attachmentIds.size()));
+        msgCtxt.setVariable(varName("attachment_ids"), String.join(",", attachmentIds));
 
         return ExecutionResult.SUCCESS;
       }
 
-      if (calloutAction == XopAction.TRANSFORM_TO_EMBEDDED) {
-        // 1. get the Document for the XML here
+      MultipartInput mpi = new MultipartInput(message.getContentAsStream(), originalContentType);
+
+      if (calloutAction == XopAction.EDIT_1) {
+        // 1. write the new first part, keeping its headers as they were,
+        // with the UsernameToken removed from the XML
         PartInput partInput1 = mpi.nextPart();
         String ctype1 = partInput1.getContentType();
         if (ctype1 == null) {
@@ -338,9 +1075,61 @@ public class XopHandler extends CalloutBase implements Execution {
           throw new IllegalStateException(
               String.format("unexpected content-type for part #1 (%s)", ctype1));
         }
-        Document document = XmlUtils.parseXml(partInput1.getInputStream());
+        InputStream in1 = partInput1.getInputStream();
+        boolean streaming = getStreaming(msgCtxt);
+        XPathExtractor extractor = getExtractor(msgCtxt);
+        SchemaValidator validator = getValidator(msgCtxt);
+        // with streaming, the values are found, and the part is validated,
+        // in the same pass as the filter
+        XPathExtractor.Collector collector =
+            (streaming && extractor != null) ? extractor.newCollector() : null;
+        EventCollector collectors =
+            streaming ? EventCollector.both(collector, newCheck(validator)) : null;
+        if (!streaming) {
+          in1 = collectBeforeParse(in1, extractor, validator, msgCtxt);
+        }
+        ChunkBuffer out = new ChunkBuffer();
+        MultipartOutput mpo = new MultipartOutput(out, originalContentType, params.get("boundary"));
+        PartOutput partOutput1 = mpo.newPart();
+        partInput1.copyHeadersTo(partOutput1);
+        XmlUtils.SerializeOptions options = getSerializeOptions(msgCtxt);
+        long transformedStart = -1;
+        if (partInput1.getContentLength() < 0) {
+          // no length to fix up, so write straight into the new first part
+          OutputStream body1 = partOutput1.getOutputStream();
+          transformedStart = out.size();
+          if (streaming) {
+            usernameTokenFilter.copy(in1, body1, collectors);
+          } else {
+            removeUsernameToken(in1, body1, options);
+          }
+        } else {
+          ChunkBuffer transformed = new ChunkBuffer();
+          if (streaming) {
+            usernameTokenFilter.copy(in1, transformed, collectors);
+          } else {
+            removeUsernameToken(in1, transformed, options);
+          }
+          partOutput1.setContentLength((int) transformed.size());
+          OutputStream body1 = partOutput1.getOutputStream();
+          transformedStart = out.size();
+          transformed.writeTo(body1);
+          transformed.release();
+        }
+        if (collector != null) {
+          setExtractedValues(collector.getValues(), msgCtxt);
+        }
+        if (!streaming || getDebug()) {
+          long transformedLength = out.size() - transformedStart;
+          msgCtxt.setVariable(
+              varName("transformed"),
+              new String(
+                  IOUtil.readAllBytes(
+                      out.newInputStream(transformedStart, out.size()), transformedLength),
+                  StandardCharsets.UTF_8));
+        }
 
-        // 2. get the InputStream for the the attachment here
+        // 2. check the attachment headers, the attachment itself is not read
         PartInput partInput2 = mpi.nextPart();
         String ctype2 = partInput2.getContentType();
         if (ctype2 == null) {
@@ -352,44 +1141,64 @@ public class XopHandler extends CalloutBase implements Execution {
               String.format("unexpected content-type for part #2 (%s)", ctype2));
         }
 
-        // 3. embed the encoded attachment into the XML
-        String resultXml = embedAttachment(document, partInput2.getInputStream());
-
-        // 4. set the result as the response stream
-        message.setContent(new ByteArrayInputStream(resultXml.getBytes()));
-        message.setHeader("content-type", "text/xml");
+        // 3. splice in the original message from the boundary before the
+        // attachment, it is streamed through when the content is consumed
+        message.setContent(
+            new SequenceInputStream(out.toInputStream(), mpi.getRemainingStream()));
 
         return ExecutionResult.SUCCESS;
       }
 
-      if (calloutAction == XopAction.EXTRACT_SOAP) {
-        // 1. extract the XML here
-        PartInput partInput1 = mpi.nextPart();
-        String ctype1 = partInput1.getContentType();
+      if (calloutAction == XopAction.TRANSFORM_TO_EMBEDDED) {
+        // 1. get the XML here, from the root part
+        List<String> acceptableAttachmentContentTypes = getAcceptableAttachmentContentTypes(msgCtxt);
+        AttachmentResolver resolver =
+            new AttachmentResolver(
+                mpi, ctype -> acceptableCtype(acceptableAttachmentContentTypes, ctype));
+        PartInput rootPart = resolver.findRoot(mpi.getParameter("start"));
+        String ctype1 = rootPart.getContentType();
         if (ctype1 == null) {
-          throw new IllegalStateException("no content-type found (part1)");
+          throw new IllegalStateException("no content-type found (root part)");
         }
         if (!acceptableCtype(acceptablePart1ContentTypes, ctype1)) {
           throw new IllegalStateException(
-              String.format("unexpected content-type for part #1 (%s)", ctype1));
+              String.format("unexpected content-type for root part (%s)", ctype1));
         }
-        InputStream in1 = partInput1.getInputStream();
-        msgCtxt.setVariable(
-            varName("extracted_xml"), new String(IOUtil.readAllBytes(in1), StandardCharsets.UTF_8));
 
-        PartInput partInput2 = mpi.nextPart();
-        String ctype2 = partInput2.getContentType();
-        if (ctype2 == null) {
-          throw new IllegalStateException("no content-type found (part2)");
+        // 2. embed the encoded attachments into the XML, resolving each
+        // xop:Include by Content-ID as the parts go by, and
+        // 3. set the result as the response stream
+        if (getStreaming(msgCtxt)) {
+          // the XML around each xop:Include, the part is not held as a DOM
+          XPathExtractor extractor = getExtractor(msgCtxt);
+          XPathExtractor.Collector collector =
+              (extractor == null) ? null : extractor.newCollector();
+          XopSplitter.Result split =
+              xopSplitter.split(
+                  rootPart.getInputStream(),
+                  EventCollector.both(collector, newCheck(getValidator(msgCtxt))));
+          if (collector != null) {
+            setExtractedValues(collector.getValues(), msgCtxt);
+          }
+          if (split.getHrefs().size() == 0) {
+            throw new IllegalStateException("could not find xop:Include element in the XML document");
+          }
+          // the attachments are encoded as the content is consumed
+          message.setContent(resolver.embed(split));
+        } else {
+          Document document =
+              XmlUtils.parseXml(
+                  collectBeforeParse(
+                      rootPart.getInputStream(),
+                      getExtractor(msgCtxt),
+                      getValidator(msgCtxt),
+                      msgCtxt));
+          embedAttachments(document, resolver);
+          ChunkBuffer result = new ChunkBuffer();
+          XmlUtils.writeTo(document, result, getSerializeOptions(msgCtxt));
+          message.setContent(result.toInputStream());
         }
-        List<String> acceptableAttachmentContentTypes = getAcceptableAttachmentContentTypes(msgCtxt);
-        if (!acceptableCtype(acceptableAttachmentContentTypes, ctype2)) {
-          throw new IllegalStateException(
-                  String.format("unexpected content-type for part #2 (%s)", ctype2));
-        }
-       // String bs64Encoded=b64Encoder.encode(IOUtil.readAllBytes(partInput2.getInputStream()));
-        msgCtxt.setVariable(
-                varName("base64Encoded"), new String(b64Encoder.encode(IOUtil.readAllBytes(partInput2.getInputStream()))));
+        message.setHeader("content-type", "text/xml");
 
         return ExecutionResult.SUCCESS;
       }
@@ -0,0 +1,145 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Copies an XML document as a stream of StAX events, dropping the elements found at one
+ * absolute path, such as /soap:Envelope/soap:Header/wsse:Security/wsse:UsernameToken.
+ *
+ * <p>Only the names of the open elements are tracked, so memory use depends on the nesting
+ * depth, not on the size of the document. Like the DOM based removal, whitespace just before
+ * a dropped element is dropped with it. The XML declaration and any DTD are not copied and the
+ * output is always UTF-8.
+ */
+public class ElementFilter {
+  private static final XMLInputFactory inputFactory = XmlUtils.newStaxInputFactory();
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+  private final List<QName> path;
+
+  public ElementFilter(QName... path) {
+    if (path.length == 0) {
+      throw new IllegalArgumentException("empty path");
+    }
+    this.path = Arrays.asList(path);
+  }
+
+  /**
+   * Copy a document, leaving out the elements at the path.
+   *
+   * @param in the document.
+   * @param out receives the filtered document, encoded as UTF-8.
+   * @return the number of elements dropped.
+   */
+  public int copy(InputStream in, OutputStream out) throws XMLStreamException {
+    return copy(in, out, null);
+  }
+
+  /**
+   * Copy a document, leaving out the elements at the path, and show every event of the original
+   * document, including those of the dropped elements, to a collector.
+   *
+   * @param collector the collector, or null.
+   */
+  public int copy(InputStream in, OutputStream out, EventCollector collector)
+      throws XMLStreamException {
+    XMLEventReader reader = inputFactory.createXMLEventReader(in);
+    XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+    try {
+      int removed = 0;
+      int depth = 0;
+      // number of open elements that match the leading steps of the path
+      int matched = 0;
+      // depth of the element being dropped, or -1
+      int skipping = -1;
+      XMLEvent pendingSpace = null;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (collector != null) {
+          collector.add(event);
+        }
+        if (skipping >= 0) {
+          if (event.isStartElement()) {
+            depth++;
+          } else if (event.isEndElement()) {
+            if (depth == skipping) {
+              skipping = -1;
+            }
+            depth--;
+          }
+          continue;
+        }
+        switch (event.getEventType()) {
+          case XMLEvent.START_DOCUMENT:
+          case XMLEvent.DTD:
+            continue;
+          case XMLEvent.START_ELEMENT:
+            depth++;
+            if (matched == depth - 1
+                && depth <= path.size()
+                && path.get(depth - 1).equals(event.asStartElement().getName())) {
+              if (depth == path.size()) {
+                skipping = depth;
+                pendingSpace = null;
+                removed++;
+                continue;
+              }
+              matched = depth;
+            }
+            break;
+          case XMLEvent.END_ELEMENT:
+            if (matched == depth) {
+              matched--;
+            }
+            depth--;
+            break;
+          case XMLEvent.CHARACTERS:
+            if (event.asCharacters().isWhiteSpace()) {
+              if (pendingSpace != null) {
+                writer.add(pendingSpace);
+              }
+              pendingSpace = event;
+              continue;
+            }
+            break;
+          default:
+            break;
+        }
+        if (pendingSpace != null) {
+          writer.add(pendingSpace);
+          pendingSpace = null;
+        }
+        writer.add(event);
+      }
+      writer.flush();
+      return removed;
+    } finally {
+      reader.close();
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Sees the events of a document as a streaming pass reads them, so that extraction or
+ * validation can ride along with a filter instead of reading the document again.
+ */
+public interface EventCollector {
+
+  /**
+   * Look at the next event of the document.
+   *
+   * @return true once no later events are needed.
+   */
+  boolean add(XMLEvent event);
+
+  /** @return a collector that shows each event to both, either of which may be null. */
+  static EventCollector both(EventCollector first, EventCollector second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+    return event -> first.add(event) & second.add(event);
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Validates a document against a W3C XML Schema as a stream of StAX events, so the validation
+ * can share a pass with a filter or an extraction.
+ *
+ * <p>The compiled Schema is immutable and shared between threads. A ValidatorHandler is not
+ * thread-safe, so each thread keeps its own and reuses it for every document. The content of
+ * an xop:Include is not shown to the validator: an element that refers to an attachment is
+ * validated as if it were empty.
+ */
+public class SchemaValidator {
+  private static final QName INCLUDE = new QName(XopSplitter.XOP_NS, "Include");
+
+  private final String description;
+  private final Schema schema;
+  private final ThreadLocal<ValidatorHandler> handlers = new ThreadLocal<ValidatorHandler>();
+
+  /**
+   * @param schema the compiled schema.
+   * @param description names the schema in messages.
+   */
+  public SchemaValidator(Schema schema, String description) {
+    this.schema = schema;
+    this.description = description;
+  }
+
+  /**
+   * Compile the schema made of one or more documents.
+   *
+   * @param locations a URL such as file:/opt/xsd/order.xsd for each document, or the name of a
+   *     resource in the callout jar, such as /xsd/order.xsd. Imports and includes are resolved
+   *     relative to the document.
+   * @throws IllegalArgumentException if a document cannot be found, or is not a valid schema.
+   */
+  public static SchemaValidator compile(List<String> locations) {
+    if (locations.isEmpty()) {
+      throw new IllegalArgumentException("no schema locations");
+    }
+    Source[] sources = new Source[locations.size()];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = new StreamSource(resolve(locations.get(i)).toExternalForm());
+    }
+    String description = String.join(",", locations);
+    try {
+      // a SchemaFactory is not thread-safe, and compiling is rare
+      SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+      return new SchemaValidator(factory.newSchema(sources), description);
+    } catch (SAXException e) {
+      throw new IllegalArgumentException(
+          String.format("invalid schema (%s): %s", description, e.getMessage()));
+    }
+  }
+
+  private static URL resolve(String location) {
+    if (location.matches("[a-zA-Z][a-zA-Z0-9+.-]+:.*")) {
+      try {
+        return new URL(location);
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(
+            String.format("bad schema location (%s): %s", location, e.getMessage()));
+      }
+    }
+    URL url =
+        SchemaValidator.class.getResource(location.startsWith("/") ? location : "/" + location);
+    if (url == null) {
+      throw new IllegalArgumentException(String.format("schema not found (%s)", location));
+    }
+    return url;
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  private ValidatorHandler getHandler() {
+    ValidatorHandler handler = handlers.get();
+    if (handler == null) {
+      handler = schema.newValidatorHandler();
+      handlers.set(handler);
+    }
+    return handler;
+  }
+
+  /**
+   * Start validating a document on this thread. Show it every event of the document, in order.
+   * The check that runs last on a thread must be finished before another starts.
+   */
+  public Check newCheck() {
+    return new Check(getHandler());
+  }
+
+  /**
+   * Validate a whole document in its own pass.
+   *
+   * @throws IllegalStateException if the document is not valid.
+   */
+  public void validate(InputStream in) throws XMLStreamException {
+    XmlUtils.scan(in, newCheck());
+  }
+
+  /**
+   * Feeds the events of one document to a ValidatorHandler, as SAX calls.
+   *
+   * <p>{@link #add} throws IllegalStateException at the first error, naming the line and
+   * column in the document.
+   */
+  public class Check implements EventCollector, Locator {
+    private final ValidatorHandler handler;
+    private final AttributesImpl attributes = new AttributesImpl();
+    private Location location;
+    private boolean started;
+    // depth within the xop:Include being skipped, or 0
+    private int skipping;
+
+    Check(ValidatorHandler handler) {
+      this.handler = handler;
+    }
+
+    /** @return false, the validator needs every event. */
+    @Override
+    public boolean add(XMLEvent event) {
+      location = event.getLocation();
+      try {
+        if (!started) {
+          started = true;
+          handler.setContentHandler(null);
+          handler.setErrorHandler(null);
+          handler.setDocumentLocator(this);
+          handler.startDocument();
+        }
+        if (skipping > 0) {
+          if (event.isStartElement()) {
+            skipping++;
+          } else if (event.isEndElement()) {
+            skipping--;
+          }
+          return false;
+        }
+        switch (event.getEventType()) {
+          case XMLEvent.START_ELEMENT:
+            StartElement start = event.asStartElement();
+            if (INCLUDE.equals(start.getName())) {
+              skipping = 1;
+              break;
+            }
+            for (Iterator<?> it = start.getNamespaces(); it.hasNext(); ) {
+              Namespace ns = (Namespace) it.next();
+              handler.startPrefixMapping(ns.getPrefix(), ns.getNamespaceURI());
+            }
+            attributes.clear();
+            for (Iterator<?> it = start.getAttributes(); it.hasNext(); ) {
+              Attribute attr = (Attribute) it.next();
+              QName name = attr.getName();
+              attributes.addAttribute(
+                  name.getNamespaceURI(),
+                  name.getLocalPart(),
+                  qualified(name),
+                  (attr.getDTDType() == null) ? "CDATA" : attr.getDTDType(),
+                  attr.getValue());
+            }
+            handler.startElement(
+                start.getName().getNamespaceURI(),
+                start.getName().getLocalPart(),
+                qualified(start.getName()),
+                attributes);
+            break;
+          case XMLEvent.END_ELEMENT:
+            EndElement end = event.asEndElement();
+            handler.endElement(
+                end.getName().getNamespaceURI(),
+                end.getName().getLocalPart(),
+                qualified(end.getName()));
+            for (Iterator<?> it = end.getNamespaces(); it.hasNext(); ) {
+              handler.endPrefixMapping(((Namespace) it.next()).getPrefix());
+            }
+            break;
+          case XMLEvent.CHARACTERS:
+          case XMLEvent.CDATA:
+          case XMLEvent.SPACE:
+            Characters characters = event.asCharacters();
+            char[] data = characters.getData().toCharArray();
+            if (characters.isIgnorableWhiteSpace()) {
+              handler.ignorableWhitespace(data, 0, data.length);
+            } else {
+              handler.characters(data, 0, data.length);
+            }
+            break;
+          case XMLEvent.END_DOCUMENT:
+            handler.endDocument();
+            break;
+          default:
+            break;
+        }
+        return false;
+      } catch (SAXParseException e) {
+        throw new IllegalStateException(
+            String.format(
+                "schema validation failed (%s) at line %d, column %d: %s",
+                description, e.getLineNumber(), e.getColumnNumber(), e.getMessage()));
+      } catch (SAXException e) {
+        throw new IllegalStateException(
+            String.format("schema validation failed (%s): %s", description, e.getMessage()));
+      }
+    }
+
+    private String qualified(QName name) {
+      String prefix = name.getPrefix();
+      return prefix.isEmpty() ? name.getLocalPart() : prefix + ":" + name.getLocalPart();
+    }
+
+    @Override
+    public String getPublicId() {
+      return (location == null) ? null : location.getPublicId();
+    }
+
+    @Override
+    public String getSystemId() {
+      return (location == null) ? null : location.getSystemId();
+    }
+
+    @Override
+    public int getLineNumber() {
+      return (location == null) ? -1 : location.getLineNumber();
+    }
+
+    @Override
+    public int getColumnNumber() {
+      return (location == null) ? -1 : location.getColumnNumber();
+    }
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * An XPath expression from the subset that can be matched against StAX events: a path of child
+ * (/) and descendant (//) steps from the root, where each step is a name, prefix:name, prefix:*
+ * or *, with any number of attribute predicates such as [@id] or [@id='x'], optionally ending
+ * with /@name or /text().
+ *
+ * <p>The path is matched as a small automaton. The state for an open element is a bit set of
+ * the steps that a child of it may match; the state for the document is {@link #START}. An
+ * unprefixed element name matches the local name in any namespace. An unprefixed attribute name
+ * means no namespace, as in XPath.
+ */
+final class StreamPath {
+  static final int ELEMENT = 0;
+  static final int TEXT = 1;
+  static final int ATTRIBUTE = 2;
+
+  /** The state of the document node. */
+  static final long START = 1L;
+  /** Set in the result of {@link #next} when the element matches the whole path. */
+  static final long MATCHED = 1L << 63;
+
+  private final String xpath;
+  private final Step[] steps;
+  private final int kind;
+  private final QName attribute;
+
+  private static class Step {
+    boolean descendant;
+    // null for any
+    String namespace;
+    String localName;
+    List<QName> attributes = new ArrayList<QName>();
+    // null where any value will do
+    List<String> values = new ArrayList<String>();
+
+    boolean matches(StartElement start) {
+      QName name = start.getName();
+      if (localName != null && !localName.equals(name.getLocalPart())) {
+        return false;
+      }
+      if (namespace != null && !namespace.equals(name.getNamespaceURI())) {
+        return false;
+      }
+      for (int i = 0; i < attributes.size(); i++) {
+        Attribute attr = start.getAttributeByName(attributes.get(i));
+        if (attr == null || (values.get(i) != null && !values.get(i).equals(attr.getValue()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Thrown for an expression outside the subset. */
+  static class UnsupportedException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedException(String message) {
+      super(message);
+    }
+  }
+
+  private StreamPath(String xpath, Step[] steps, int kind, QName attribute) {
+    this.xpath = xpath;
+    this.steps = steps;
+    this.kind = kind;
+    this.attribute = attribute;
+  }
+
+  /**
+   * @param xpath the expression.
+   * @param namespaces the namespace for each prefix used in the expression.
+   * @throws IllegalArgumentException if the expression is outside the subset, or uses a prefix
+   *     with no namespace.
+   */
+  static StreamPath compile(String xpath, Map<String, String> namespaces) {
+    return new Parser(xpath, namespaces).parse();
+  }
+
+  String getXPath() {
+    return xpath;
+  }
+
+  /** @return ELEMENT, TEXT or ATTRIBUTE. */
+  int getKind() {
+    return kind;
+  }
+
+  /** @return the attribute at the end of the path, or null. */
+  QName getAttribute() {
+    return attribute;
+  }
+
+  /**
+   * Follow the path into a child element.
+   *
+   * @param state the state of the parent.
+   * @param start the child.
+   * @return the state of the child, with {@link #MATCHED} set if the child matches the last
+   *     element step.
+   */
+  long next(long state, StartElement start) {
+    long next = 0;
+    for (int i = 0; state != 0; i++, state >>>= 1) {
+      if ((state & 1) == 0) {
+        continue;
+      }
+      Step step = steps[i];
+      if (step.descendant) {
+        next |= 1L << i;
+      }
+      if (step.matches(start)) {
+        next |= (i < steps.length - 1) ? 1L << (i + 1) : MATCHED;
+      }
+    }
+    return next;
+  }
+
+  /** Reads one expression. */
+  private static class Parser {
+    private final String xpath;
+    private final Map<String, String> namespaces;
+    private int pos;
+
+    Parser(String xpath, Map<String, String> namespaces) {
+      this.xpath = xpath.trim();
+      this.namespaces = namespaces;
+    }
+
+    private UnsupportedException unsupported(String why) {
+      return new UnsupportedException(String.format("unsupported XPath (%s): %s", xpath, why));
+    }
+
+    private boolean accept(String s) {
+      if (xpath.startsWith(s, pos)) {
+        pos += s.length();
+        return true;
+      }
+      return false;
+    }
+
+    private String name() {
+      int start = pos;
+      while (pos < xpath.length()) {
+        char c = xpath.charAt(pos);
+        if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+          break;
+        }
+        pos++;
+      }
+      if (pos == start) {
+        throw unsupported("expected a name at position " + pos);
+      }
+      return xpath.substring(start, pos);
+    }
+
+    private String namespace(String prefix) {
+      String ns = namespaces.get(prefix);
+      if (ns == null) {
+        throw new IllegalArgumentException(
+            String.format("no namespace for prefix (%s) in XPath (%s)", prefix, xpath));
+      }
+      return ns;
+    }
+
+    private QName attributeName() {
+      String name = name();
+      if (accept(":")) {
+        return new QName(namespace(name), name(), name);
+      }
+      return new QName(name);
+    }
+
+    StreamPath parse() {
+      List<Step> steps = new ArrayList<Step>();
+      int kind = ELEMENT;
+      QName attribute = null;
+      if (!xpath.startsWith("/")) {
+        throw unsupported("the path must start at the root");
+      }
+      while (pos < xpath.length()) {
+        boolean descendant = accept("//");
+        if (!descendant && !accept("/")) {
+          throw unsupported("expected / at position " + pos);
+        }
+        if (accept("@")) {
+          if (descendant || steps.isEmpty()) {
+            throw unsupported("an attribute must follow an element step");
+          }
+          kind = ATTRIBUTE;
+          attribute = attributeName();
+          break;
+        }
+        if (accept("text()")) {
+          if (descendant || steps.isEmpty()) {
+            throw unsupported("text() must follow an element step");
+          }
+          kind = TEXT;
+          break;
+        }
+        Step step = new Step();
+        step.descendant = descendant;
+        if (!accept("*")) {
+          String name = name();
+          if (accept(":")) {
+            step.namespace = namespace(name);
+            if (!accept("*")) {
+              step.localName = name();
+            }
+          } else {
+            step.localName = name;
+          }
+        }
+        while (accept("[")) {
+          if (!accept("@")) {
+            throw unsupported("only attribute predicates are supported");
+          }
+          step.attributes.add(attributeName());
+          String value = null;
+          if (accept("=")) {
+            char quote = (pos < xpath.length()) ? xpath.charAt(pos) : 0;
+            int end = (quote == '\'' || quote == '"') ? xpath.indexOf(quote, pos + 1) : -1;
+            if (end < 0) {
+              throw unsupported("expected a quoted value at position " + pos);
+            }
+            value = xpath.substring(pos + 1, end);
+            pos = end + 1;
+          }
+          step.values.add(value);
+          if (!accept("]")) {
+            throw unsupported("expected ] at position " + pos);
+          }
+        }
+        steps.add(step);
+      }
+      if (pos < xpath.length()) {
+        throw unsupported("unexpected text at position " + pos);
+      }
+      if (steps.isEmpty()) {
+        throw unsupported("no steps");
+      }
+      if (steps.size() > 63) {
+        throw unsupported("too many steps");
+      }
+      return new StreamPath(xpath, steps.toArray(new Step[steps.size()]), kind, attribute);
+    }
+  }
+}
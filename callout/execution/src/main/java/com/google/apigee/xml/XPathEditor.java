@@ -0,0 +1,541 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.ChunkBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.xpath.XPathConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Removes, replaces or inserts the nodes chosen by XPath expressions, compiled once into a plan
+ * that is applied to many documents.
+ *
+ * <p>When every expression is in the subset described in {@link StreamPath}, the plan runs as
+ * a filter over StAX events, and every edit is matched against the original document. Otherwise
+ * the document is parsed into a DOM, the edits are applied one after the other with full XPath
+ * 1.0, and the DOM is written out. In both cases an unprefixed element name matches the local
+ * name in any namespace.
+ *
+ * <p>Like the UsernameToken filter, whitespace just before a removed element is removed with it.
+ * The XML declaration and any DTD are not copied by the streaming filter. Output is UTF-8.
+ */
+public class XPathEditor {
+  private static final XMLInputFactory inputFactory = XmlUtils.newStaxInputFactory();
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+  private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+  public enum Operation {
+    /** Remove the element, attribute or text. */
+    REMOVE,
+    /** Replace the content of the element, or the value of the attribute or text, with text. */
+    REPLACE,
+    /** Append an XML fragment as the last child of the element. */
+    INSERT
+  }
+
+  /** One edit: an operation, the nodes it applies to, and the text or XML it uses. */
+  public static class Edit {
+    private final Operation operation;
+    private final String xpath;
+    private final String content;
+
+    /**
+     * @param content the replacement text or the inserted XML, or null to remove.
+     */
+    public Edit(Operation operation, String xpath, String content) {
+      if (operation != Operation.REMOVE && content == null) {
+        throw new IllegalArgumentException(
+            String.format("no content for %s %s", operation.name().toLowerCase(), xpath));
+      }
+      this.operation = operation;
+      this.xpath = xpath;
+      this.content = content;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public String getXPath() {
+      return xpath;
+    }
+
+    public String getContent() {
+      return content;
+    }
+
+    /**
+     * Read an edit written as: remove PATH, replace PATH TEXT, or insert PATH XML. The path ends
+     * at the first whitespace outside of quotes, brackets and parentheses.
+     */
+    public static Edit parse(String spec) {
+      spec = spec.trim();
+      int space = spec.indexOf(' ');
+      if (space < 0) {
+        throw new IllegalArgumentException(String.format("no XPath in edit (%s)", spec));
+      }
+      Operation operation;
+      try {
+        operation = Operation.valueOf(spec.substring(0, space).toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            String.format("unknown operation in edit (%s)", spec.substring(0, space)));
+      }
+      int start = space + 1;
+      while (start < spec.length() && Character.isWhitespace(spec.charAt(start))) {
+        start++;
+      }
+      int end = start;
+      char quote = 0;
+      int nesting = 0;
+      while (end < spec.length()) {
+        char c = spec.charAt(end);
+        if (quote != 0) {
+          if (c == quote) {
+            quote = 0;
+          }
+        } else if (c == '\'' || c == '"') {
+          quote = c;
+        } else if (c == '[' || c == '(') {
+          nesting++;
+        } else if (c == ']' || c == ')') {
+          nesting--;
+        } else if (nesting == 0 && Character.isWhitespace(c)) {
+          break;
+        }
+        end++;
+      }
+      String xpath = spec.substring(start, end);
+      String content = (end < spec.length()) ? spec.substring(end + 1) : null;
+      if (operation == Operation.REMOVE && content != null && !content.trim().isEmpty()) {
+        throw new IllegalArgumentException(String.format("unexpected text in edit (%s)", spec));
+      }
+      return new Edit(operation, xpath, operation == Operation.REMOVE ? null : content);
+    }
+  }
+
+  private final List<Edit> edits;
+  // one per edit, or null if the plan needs the DOM
+  private final StreamPath[] paths;
+  private final XPathEvaluator evaluator;
+  private final String[] domXPaths;
+
+  /**
+   * @param edits the edits, in the order they are applied.
+   * @param namespaces the namespace for each prefix used in the expressions.
+   * @throws IllegalArgumentException if an edit cannot be applied to the nodes its path chooses,
+   *     or a path uses a prefix with no namespace.
+   */
+  public XPathEditor(List<Edit> edits, Map<String, String> namespaces) {
+    if (edits.isEmpty()) {
+      throw new IllegalArgumentException("no edits");
+    }
+    this.edits = Collections.unmodifiableList(new ArrayList<Edit>(edits));
+    StreamPath[] compiled = new StreamPath[edits.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      Edit edit = edits.get(i);
+      try {
+        compiled[i] = StreamPath.compile(edit.getXPath(), namespaces);
+      } catch (StreamPath.UnsupportedException e) {
+        compiled = null;
+        break;
+      }
+      if (edit.getOperation() == Operation.INSERT && compiled[i].getKind() != StreamPath.ELEMENT) {
+        throw new IllegalArgumentException(
+            String.format("insert needs a path to an element (%s)", edit.getXPath()));
+      }
+    }
+    this.paths = compiled;
+    // kept even for a streaming plan, for callers that ask for the DOM
+    evaluator = new XPathEvaluator();
+    for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+      evaluator.registerNamespace(entry.getKey(), entry.getValue());
+    }
+    domXPaths = new String[edits.size()];
+    for (int i = 0; i < domXPaths.length; i++) {
+      domXPaths[i] = XPathEvaluator.matchAnyNamespace(edits.get(i).getXPath());
+    }
+  }
+
+  public List<Edit> getEdits() {
+    return edits;
+  }
+
+  /** @return whether the plan runs as a streaming filter, rather than over a DOM. */
+  public boolean isStreaming() {
+    return paths != null;
+  }
+
+  /**
+   * Apply the edits to a document.
+   *
+   * @param in the document.
+   * @param out receives the edited document, encoded as UTF-8.
+   * @param resolver applied to the content of each edit before it is used, such as to resolve
+   *     variable references.
+   * @param options how the DOM is written out, when one is used.
+   * @param streaming false to use a DOM even if the plan could run as a filter.
+   * @param collector shown every event of the original document, or null. With a DOM, the
+   *     document is shown to it before it is parsed.
+   * @return the number of nodes edited.
+   */
+  public int apply(
+      InputStream in,
+      OutputStream out,
+      UnaryOperator<String> resolver,
+      XmlUtils.SerializeOptions options,
+      boolean streaming,
+      EventCollector collector)
+      throws Exception {
+    String[] contents = new String[edits.size()];
+    for (int i = 0; i < contents.length; i++) {
+      String content = edits.get(i).getContent();
+      contents[i] = (content == null) ? null : resolver.apply(content);
+    }
+    if (paths == null || !streaming) {
+      if (collector != null) {
+        ChunkBuffer xml = new ChunkBuffer().readFrom(in);
+        XmlUtils.scan(xml.newInputStream(), collector);
+        in = xml.toInputStream();
+      }
+      return applyToDom(in, out, contents, options);
+    }
+    return stream(in, out, contents, collector);
+  }
+
+  private int applyToDom(
+      InputStream in, OutputStream out, String[] contents, XmlUtils.SerializeOptions options)
+      throws Exception {
+    Document document = XmlUtils.parseXml(in);
+    int edited = 0;
+    for (int i = 0; i < edits.size(); i++) {
+      NodeList nodes =
+          (NodeList) evaluator.evaluate(domXPaths[i], document, XPathConstants.NODESET);
+      // the text of an element is edited as a whole: its first text node
+      // gets the new value and the others are removed, as when streaming
+      Set<Node> textParents = new HashSet<Node>();
+      for (int j = 0; j < nodes.getLength(); j++) {
+        Node node = nodes.item(j);
+        if (isText(node) && !textParents.add(node.getParentNode())) {
+          node.getParentNode().removeChild(node);
+        } else if (editNode(node, edits.get(i).getOperation(), contents[i])) {
+          edited++;
+        }
+      }
+    }
+    XmlUtils.writeTo(document, out, options);
+    return edited;
+  }
+
+  private static boolean isText(Node node) {
+    return node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE;
+  }
+
+  private static boolean editNode(Node node, Operation operation, String content)
+      throws Exception {
+    switch (node.getNodeType()) {
+      case Node.ATTRIBUTE_NODE:
+        Attr attr = (Attr) node;
+        if (operation == Operation.REMOVE) {
+          attr.getOwnerElement().removeAttributeNode(attr);
+        } else if (operation == Operation.REPLACE) {
+          attr.setValue(content);
+        } else {
+          throw new IllegalStateException("cannot insert into an attribute");
+        }
+        return true;
+      case Node.ELEMENT_NODE:
+        if (operation == Operation.REMOVE) {
+          if (node.getParentNode() == null || node.getParentNode() == node.getOwnerDocument()) {
+            throw new IllegalStateException("cannot remove the document element");
+          }
+          Node prev = node.getPreviousSibling();
+          if (prev != null
+              && prev.getNodeType() == Node.TEXT_NODE
+              && prev.getNodeValue().trim().isEmpty()) {
+            prev.getParentNode().removeChild(prev);
+          }
+          node.getParentNode().removeChild(node);
+        } else if (operation == Operation.REPLACE) {
+          node.setTextContent(content);
+        } else {
+          Document fragment = XmlUtils.parseXml(content);
+          node.appendChild(
+              node.getOwnerDocument().importNode(fragment.getDocumentElement(), true));
+        }
+        return true;
+      case Node.TEXT_NODE:
+      case Node.CDATA_SECTION_NODE:
+        if (operation == Operation.REMOVE) {
+          node.getParentNode().removeChild(node);
+        } else if (operation == Operation.REPLACE) {
+          node.setNodeValue(content);
+        } else {
+          throw new IllegalStateException("cannot insert into text");
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // the events of an inserted fragment, without the document events
+  private static List<XMLEvent> fragmentEvents(String xml) throws XMLStreamException {
+    List<XMLEvent> events = new ArrayList<XMLEvent>();
+    XMLEventReader reader = inputFactory.createXMLEventReader(new StringReader(xml));
+    try {
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (!event.isStartDocument() && !event.isEndDocument()) {
+          events.add(event);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return events;
+  }
+
+  private int stream(
+      InputStream in, OutputStream out, String[] contents, EventCollector collector)
+      throws XMLStreamException {
+    int n = paths.length;
+    List<List<XMLEvent>> fragments = new ArrayList<List<XMLEvent>>(n);
+    for (int i = 0; i < n; i++) {
+      fragments.add(
+          edits.get(i).getOperation() == Operation.INSERT ? fragmentEvents(contents[i]) : null);
+    }
+    XMLEventReader reader = inputFactory.createXMLEventReader(in);
+    XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+    try {
+      int edited = 0;
+      int depth = 0;
+      long[] states = new long[n * 16];
+      Arrays.fill(states, 0, n, StreamPath.START);
+      // the element being removed, or whose content is being replaced, or -1
+      int skipping = -1;
+      String replacement = null;
+      // per depth: edits waiting for the end of the element, whether its
+      // direct text is dropped, and the text put in place of the first piece,
+      // until that is written ("" to remove)
+      BitSet[] inserts = new BitSet[16];
+      boolean[] dropText = new boolean[16];
+      String[] newText = new String[16];
+      XMLEvent pendingSpace = null;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (collector != null) {
+          collector.add(event);
+        }
+        if (skipping >= 0) {
+          if (event.isStartElement()) {
+            depth++;
+            continue;
+          }
+          if (!event.isEndElement()) {
+            continue;
+          }
+          if (depth-- > skipping) {
+            continue;
+          }
+          skipping = -1;
+          if (replacement == null) {
+            // removed, with its end tag
+            continue;
+          }
+          writer.add(eventFactory.createCharacters(replacement));
+          replacement = null;
+          depth++;
+        }
+        switch (event.getEventType()) {
+          case XMLEvent.START_DOCUMENT:
+          case XMLEvent.DTD:
+            continue;
+          case XMLEvent.START_ELEMENT:
+            {
+              StartElement start = event.asStartElement();
+              int parent = depth * n;
+              depth++;
+              int child = depth * n;
+              if (child + n > states.length) {
+                states = Arrays.copyOf(states, states.length * 2);
+              }
+              if (depth >= inserts.length) {
+                inserts = Arrays.copyOf(inserts, inserts.length * 2);
+                dropText = Arrays.copyOf(dropText, inserts.length);
+                newText = Arrays.copyOf(newText, inserts.length);
+              }
+              if (inserts[depth] == null) {
+                inserts[depth] = new BitSet(n);
+              } else {
+                inserts[depth].clear();
+              }
+              dropText[depth] = false;
+              newText[depth] = null;
+              boolean remove = false;
+              List<Attribute> attributes = null;
+              for (int i = 0; i < n; i++) {
+                long next = paths[i].next(states[parent + i], start);
+                states[child + i] = next & ~StreamPath.MATCHED;
+                if ((next & StreamPath.MATCHED) == 0) {
+                  continue;
+                }
+                Operation operation = edits.get(i).getOperation();
+                switch (paths[i].getKind()) {
+                  case StreamPath.ELEMENT:
+                    if (operation == Operation.REMOVE) {
+                      remove = true;
+                    } else if (operation == Operation.REPLACE) {
+                      replacement = contents[i];
+                    } else {
+                      inserts[depth].set(i);
+                    }
+                    edited++;
+                    break;
+                  case StreamPath.TEXT:
+                    dropText[depth] = true;
+                    newText[depth] = (operation == Operation.REPLACE) ? contents[i] : "";
+                    break;
+                  default:
+                    if (start.getAttributeByName(paths[i].getAttribute()) == null) {
+                      break;
+                    }
+                    if (attributes == null) {
+                      attributes = new ArrayList<Attribute>();
+                      for (Iterator<?> it = start.getAttributes(); it.hasNext(); ) {
+                        attributes.add((Attribute) it.next());
+                      }
+                    }
+                    for (int a = 0; a < attributes.size(); a++) {
+                      if (attributes.get(a).getName().equals(paths[i].getAttribute())) {
+                        if (operation == Operation.REMOVE) {
+                          attributes.remove(a);
+                        } else {
+                          attributes.set(
+                              a,
+                              eventFactory.createAttribute(
+                                  attributes.get(a).getName(), contents[i]));
+                        }
+                        edited++;
+                        break;
+                      }
+                    }
+                    break;
+                }
+              }
+              if (remove) {
+                if (depth == 1) {
+                  throw new IllegalStateException("cannot remove the document element");
+                }
+                skipping = depth;
+                replacement = null;
+                pendingSpace = null;
+                continue;
+              }
+              if (attributes != null) {
+                event =
+                    eventFactory.createStartElement(
+                        start.getName(), attributes.iterator(), start.getNamespaces());
+              }
+              if (replacement != null) {
+                skipping = depth;
+                if (pendingSpace != null) {
+                  writer.add(pendingSpace);
+                  pendingSpace = null;
+                }
+                writer.add(event);
+                continue;
+              }
+            }
+            break;
+          case XMLEvent.END_ELEMENT:
+            if (!inserts[depth].isEmpty()) {
+              if (pendingSpace != null) {
+                writer.add(pendingSpace);
+                pendingSpace = null;
+              }
+              BitSet waiting = inserts[depth];
+              for (int i = waiting.nextSetBit(0); i >= 0; i = waiting.nextSetBit(i + 1)) {
+                for (XMLEvent e : fragments.get(i)) {
+                  writer.add(e);
+                }
+              }
+            }
+            depth--;
+            break;
+          case XMLEvent.CHARACTERS:
+          case XMLEvent.CDATA:
+          case XMLEvent.SPACE:
+            if (dropText[depth]) {
+              if (newText[depth] != null) {
+                if (!newText[depth].isEmpty()) {
+                  writer.add(eventFactory.createCharacters(newText[depth]));
+                }
+                newText[depth] = null;
+                edited++;
+              }
+              continue;
+            }
+            if (event.getEventType() == XMLEvent.CHARACTERS
+                && event.asCharacters().isWhiteSpace()) {
+              if (pendingSpace != null) {
+                writer.add(pendingSpace);
+              }
+              pendingSpace = event;
+              continue;
+            }
+            break;
+          default:
+            break;
+        }
+        if (pendingSpace != null) {
+          writer.add(pendingSpace);
+          pendingSpace = null;
+        }
+        writer.add(event);
+      }
+      writer.flush();
+      return edited;
+    } finally {
+      reader.close();
+      writer.close();
+    }
+  }
+}
@@ -14,21 +14,15 @@
 //
 package com.google.apigee.xml;
 
-import java.io.CharArrayReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Iterator;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPath;
@@ -43,6 +37,10 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
 
 /**
  *
@@ -50,30 +48,80 @@ import java.util.Hashtable;
  */
 public class XPathEvaluator {
 
-    private Transformer transformer;
-    private DocumentBuilder docBuilder;
-
+    // the builder and transformer are borrowed from XmlUtils, which keeps
+    // one of each per thread
     public XPathEvaluator(){
-        try {
-            transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        } catch (TransformerConfigurationException ex) {
-            ex.printStackTrace();
-        }
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            docBuilder = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException ex) {
-            ex.printStackTrace();
-        }
     }
 
+    // Compiled expressions are kept per thread, because neither XPath nor
+    // XPathExpression is thread-safe. They are keyed by the namespace
+    // bindings and the expression text, so evaluators with the same
+    // bindings share them, and the least recently used are dropped first.
+    private static final int MAX_EXPRESSIONS = 128;
+    private static final ThreadLocal<XPath> xpaths = new ThreadLocal<XPath>();
+    private static final ThreadLocal<Map<String, XPathExpression>> expressions =
+        new ThreadLocal<Map<String, XPathExpression>>() {
+            @Override
+            protected Map<String, XPathExpression> initialValue() {
+                return new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                        return size() > MAX_EXPRESSIONS;
+                    }
+                };
+            }
+        };
+
+    // bound to the default namespace of a document, for its unprefixed names
+    private static final String DEFAULT_PREFIX = "_default";
+
     private Hashtable<String, String> prefixi = new Hashtable<String, String> ();
+    // the bindings as part of a cache key, or null until they are next needed
+    private volatile String bindings;
 
     public void registerNamespace(String prefix, String ns) {
         prefixi.put(prefix, ns);
+        bindings = null;
+    }
+
+    private String getBindings() {
+        String b = bindings;
+        if (b == null) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : new TreeMap<String, String>(prefixi).entrySet()) {
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            }
+            b = sb.toString();
+            bindings = b;
+        }
+        return b;
+    }
+
+    /**
+     * @param defaultNs the namespace that unprefixed element names in the
+     * expression belong to, or null for no namespace.
+     */
+    private XPathExpression compile(String xpath, String defaultNs) throws XPathExpressionException {
+        String key = getBindings() + (defaultNs == null ? "" : defaultNs) + '\n' + xpath;
+        Map<String, XPathExpression> cache = expressions.get();
+        XPathExpression expr = cache.get(key);
+        if (expr == null) {
+            XPath xPath = xpaths.get();
+            if (xPath == null) {
+                xPath = XPathFactory.newInstance().newXPath();
+                xpaths.set(xPath);
+            }
+            // a copy, so that later registrations do not change a cached expression
+            Hashtable<String, String> ctx = new Hashtable<String, String>(prefixi);
+            if (defaultNs != null) {
+                ctx.put(DEFAULT_PREFIX, defaultNs);
+                xpath = qualifyNames(xpath, DEFAULT_PREFIX);
+            }
+            xPath.setNamespaceContext(new CustomNamespaceResolver(ctx));
+            expr = xPath.compile(xpath);
+            cache.put(key, expr);
+        }
+        return expr;
     }
 
     public String evalXPathToString(String xpath, Document doc) throws SAXException,IOException,TransformerException,XPathExpressionException {
@@ -99,7 +147,7 @@ public class XPathEvaluator {
 
                 if (nodeValue == null) {
                     StringWriter stringWriter = new StringWriter();
-                    transformer.transform(new DOMSource(item), new StreamResult(stringWriter));
+                    XmlUtils.getTransformer(true).transform(new DOMSource(item), new StreamResult(stringWriter));
                     sb.append(stringWriter.toString());
                 } else {
                     sb.append(item.getNodeValue()).append("\n");
@@ -115,31 +163,150 @@ public class XPathEvaluator {
     public Object evaluate(String xpath, String xml, QName ret)
         throws SAXException, IOException, XPathExpressionException {
 
-        Document sourceXML = docBuilder.parse(new InputSource(new CharArrayReader(xml.toCharArray())));
-
-        //hack; found no way to get it working with default namespaces
-        if(sourceXML.lookupNamespaceURI(null) != null) {
-            try {
-                DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance();
-                fac.setNamespaceAware(false);
-                sourceXML = fac.newDocumentBuilder().parse(new InputSource(new CharArrayReader(xml.toCharArray())));
-            } catch (ParserConfigurationException ex) {}
+        Document sourceXML;
+        try {
+            sourceXML = XmlUtils.getBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (ParserConfigurationException ex) {
+            throw new IllegalStateException(ex);
         }
 
-        // String uri = sourceXML.lookupNamespaceURI(null);
-        // if (uri !=null) {
-        //     registerNamespace("", uri);
-        // }
-        return evaluate(xpath, sourceXML, ret);
+        // XPath 1.0 has no default namespace: an unprefixed name always
+        // means no namespace. So that //GenericRequest still finds the
+        // element in a document with a default namespace, unprefixed
+        // element names are bound to that namespace when compiling.
+        String uri = sourceXML.lookupNamespaceURI(null);
+        return compile(xpath, uri).evaluate(sourceXML, ret);
     }
 
     public Object evaluate(String xpath, Document sourceXML, QName ret)
         throws SAXException, IOException, XPathExpressionException {
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xPath = factory.newXPath();
-        xPath.setNamespaceContext(new CustomNamespaceResolver(prefixi));
-        XPathExpression expr = xPath.compile(xpath);
-        return expr.evaluate(sourceXML, ret);
+        return compile(xpath, null).evaluate(sourceXML, ret);
+    }
+
+    /**
+     * Put a prefix on the unprefixed element names of an expression.
+     * Attribute names, functions, axes, operators and literals are left
+     * as they are.
+     */
+    static String qualifyNames(String xpath, String prefix) {
+        return rewriteNames(xpath, name -> prefix + ":" + name);
+    }
+
+    /**
+     * Make the unprefixed element names of an expression match the local
+     * name in any namespace, as the streaming matchers do.
+     */
+    static String matchAnyNamespace(String xpath) {
+        return rewriteNames(xpath, name -> "*[local-name()='" + name + "']");
+    }
+
+    private static String rewriteNames(String xpath, UnaryOperator<String> rename) {
+        StringBuilder sb = new StringBuilder(xpath.length() + 32);
+        // whether the previous token ended an operand, in which case a
+        // name here is an operator (XPath 1.0 section 3.7)
+        boolean afterOperand = false;
+        boolean attribute = false;
+        int i = 0;
+        int n = xpath.length();
+        while (i < n) {
+            char c = xpath.charAt(i);
+            if (Character.isWhitespace(c)) {
+                sb.append(c);
+                i++;
+            } else if (c == '\'' || c == '"') {
+                int end = xpath.indexOf(c, i + 1);
+                end = (end < 0) ? n : end + 1;
+                sb.append(xpath, i, end);
+                i = end;
+                afterOperand = true;
+            } else if (Character.isDigit(c)
+                       || (c == '.' && i + 1 < n && Character.isDigit(xpath.charAt(i + 1)))) {
+                int end = i;
+                while (end < n && (Character.isDigit(xpath.charAt(end)) || xpath.charAt(end) == '.')) {
+                    end++;
+                }
+                sb.append(xpath, i, end);
+                i = end;
+                afterOperand = true;
+            } else if (c == '$') {
+                int end = endOfQName(xpath, i + 1);
+                sb.append(xpath, i, end);
+                i = end;
+                afterOperand = true;
+            } else if (isNameStart(c)) {
+                int end = endOfName(xpath, i);
+                String name = xpath.substring(i, end);
+                int next = end;
+                while (next < n && Character.isWhitespace(xpath.charAt(next))) {
+                    next++;
+                }
+                if (afterOperand) {
+                    // and, or, div, mod
+                    sb.append(name);
+                    afterOperand = false;
+                } else if (next < n && xpath.charAt(next) == '(') {
+                    // a function, or a node type test such as text()
+                    sb.append(name);
+                } else if (xpath.startsWith("::", next)) {
+                    sb.append(name);
+                    attribute = name.equals("attribute");
+                    afterOperand = false;
+                } else if (end < n && xpath.charAt(end) == ':') {
+                    // already prefixed
+                    end = endOfQName(xpath, i);
+                    sb.append(xpath, i, end);
+                    afterOperand = true;
+                    attribute = false;
+                } else {
+                    sb.append(attribute ? name : rename.apply(name));
+                    afterOperand = true;
+                    attribute = false;
+                }
+                i = end;
+            } else {
+                sb.append(c);
+                i++;
+                if (c == '*') {
+                    // a wildcard matches any namespace, a multiplication is an operator
+                    afterOperand = !afterOperand;
+                    attribute = false;
+                } else if (c == ')' || c == ']' || c == '.') {
+                    afterOperand = true;
+                } else if (c == ':' && i < n && xpath.charAt(i) == ':') {
+                    sb.append(':');
+                    i++;
+                    afterOperand = false;
+                } else {
+                    attribute = (c == '@');
+                    afterOperand = false;
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static int endOfName(String s, int i) {
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    // the end of a name, or of prefix:name or prefix:*
+    private static int endOfQName(String s, int i) {
+        i = endOfName(s, i);
+        if (i + 1 < s.length() && s.charAt(i) == ':' && s.charAt(i + 1) != ':') {
+            i = (s.charAt(i + 1) == '*') ? i + 2 : endOfName(s, i + 1);
+        }
+        return i;
     }
 
 
@@ -0,0 +1,175 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Finds the values of a few XPath expressions in a single pass over a stream of StAX events,
+ * without building a DOM.
+ *
+ * <p>Only the subset of XPath described in {@link StreamPath} is supported. A path ending with
+ * /@name gets the value of the attribute, and one ending with /text() the text directly in the
+ * element; otherwise the value is all the text in the element.
+ *
+ * <p>Each expression gets the value of its first match in document order. The expressions are
+ * compiled once, and an instance can be shared between threads; the state of a pass is kept in
+ * a {@link Collector}.
+ */
+public class XPathExtractor {
+  private final List<String> xpaths;
+  private final StreamPath[] targets;
+
+  /**
+   * @param xpaths the expressions.
+   * @param namespaces the namespace for each prefix used in the expressions.
+   * @throws IllegalArgumentException if an expression is outside the supported subset, or uses
+   *     a prefix with no namespace.
+   */
+  public XPathExtractor(List<String> xpaths, Map<String, String> namespaces) {
+    if (xpaths.isEmpty()) {
+      throw new IllegalArgumentException("no expressions");
+    }
+    this.xpaths = Collections.unmodifiableList(new ArrayList<String>(xpaths));
+    this.targets = new StreamPath[xpaths.size()];
+    for (int i = 0; i < targets.length; i++) {
+      targets[i] = StreamPath.compile(xpaths.get(i), namespaces);
+    }
+  }
+
+  public List<String> getXPaths() {
+    return xpaths;
+  }
+
+  /** Start a pass. */
+  public Collector newCollector() {
+    return new Collector();
+  }
+
+  /**
+   * Find the values in a document, reading only as far as the last of the first matches.
+   *
+   * @param in the document.
+   * @return the value for each expression, in order, or null where there is no match.
+   */
+  public List<String> extract(InputStream in) throws XMLStreamException {
+    Collector collector = newCollector();
+    XmlUtils.scan(in, collector);
+    return collector.getValues();
+  }
+
+  /** Follows the expressions through the events of one document. */
+  public class Collector implements EventCollector {
+    private long[] states;
+    private int depth;
+    private final String[] values = new String[targets.length];
+    private final StringBuilder[] text = new StringBuilder[targets.length];
+    private final int[] textDepth = new int[targets.length];
+    private int remaining = targets.length;
+
+    Collector() {
+      states = new long[targets.length * 16];
+      for (int t = 0; t < targets.length; t++) {
+        states[t] = StreamPath.START;
+      }
+    }
+
+    /** @return true once every expression has a value, and later events can be skipped. */
+    public boolean isDone() {
+      return remaining == 0;
+    }
+
+    /** @return true once every expression has a value. */
+    @Override
+    public boolean add(XMLEvent event) {
+      if (remaining == 0) {
+        return true;
+      }
+      switch (event.getEventType()) {
+        case XMLEvent.START_ELEMENT:
+          startElement(event.asStartElement());
+          break;
+        case XMLEvent.END_ELEMENT:
+          for (int t = 0; t < targets.length; t++) {
+            if (text[t] != null && textDepth[t] == depth) {
+              values[t] = text[t].toString();
+              text[t] = null;
+              remaining--;
+            }
+          }
+          depth--;
+          break;
+        case XMLEvent.CHARACTERS:
+        case XMLEvent.CDATA:
+        case XMLEvent.SPACE:
+          for (int t = 0; t < targets.length; t++) {
+            if (text[t] != null
+                && (targets[t].getKind() == StreamPath.ELEMENT || textDepth[t] == depth)) {
+              text[t].append(event.asCharacters().getData());
+            }
+          }
+          break;
+        default:
+          break;
+      }
+      return remaining == 0;
+    }
+
+    private void startElement(StartElement start) {
+      int n = targets.length;
+      int parent = depth * n;
+      depth++;
+      int child = depth * n;
+      if (child + n > states.length) {
+        states = Arrays.copyOf(states, states.length * 2);
+      }
+      for (int t = 0; t < n; t++) {
+        if (values[t] != null || text[t] != null) {
+          states[child + t] = 0;
+          continue;
+        }
+        StreamPath target = targets[t];
+        long next = target.next(states[parent + t], start);
+        if ((next & StreamPath.MATCHED) != 0) {
+          if (target.getKind() == StreamPath.ATTRIBUTE) {
+            Attribute attr = start.getAttributeByName(target.getAttribute());
+            if (attr != null) {
+              values[t] = attr.getValue();
+              remaining--;
+            }
+          } else {
+            text[t] = new StringBuilder();
+            textDepth[t] = depth;
+          }
+        }
+        states[child + t] = (values[t] == null && text[t] == null) ? next & ~StreamPath.MATCHED : 0;
+      }
+    }
+
+    /** @return the value for each expression, in order, or null where there is no match yet. */
+    public List<String> getValues() {
+      return Collections.unmodifiableList(Arrays.asList(values.clone()));
+    }
+  }
+}
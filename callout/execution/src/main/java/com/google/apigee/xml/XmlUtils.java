@@ -17,13 +17,22 @@ package com.google.apigee.xml;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -35,26 +44,126 @@ import org.xml.sax.SAXException;
 
 public class XmlUtils {
 
-  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    // prevent DTD entities from being resolved.
-    builder.setEntityResolver(
-        new EntityResolver() {
-          @Override
-          public InputSource resolveEntity(String publicId, String systemId)
-              throws SAXException, IOException {
-            return new InputSource(new StringReader(""));
-          }
-        });
+  // StAX input for the streaming filters, with DTDs and external entities turned off.
+  static XMLInputFactory newStaxInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    return factory;
+  }
+
+  private static final XMLInputFactory staxInputFactory = newStaxInputFactory();
+
+  // The factories are looked up and configured once. Builders and
+  // transformers are not thread-safe, so each thread keeps its own. A
+  // builder is reset between parses; an identity transformer keeps no state
+  // between transforms.
+  private static final DocumentBuilderFactory builderFactory = newBuilderFactory();
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+  private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+  // one per combination of options, indexed by SerializeOptions.index()
+  private static final List<ThreadLocal<Transformer>> transformers = newTransformerPools(4);
+
+  private static final SerializeOptions PRETTY = new SerializeOptions(true, false);
+
+  private static List<ThreadLocal<Transformer>> newTransformerPools(int count) {
+    List<ThreadLocal<Transformer>> pools = new ArrayList<ThreadLocal<Transformer>>(count);
+    for (int i = 0; i < count; i++) {
+      pools.add(new ThreadLocal<Transformer>());
+    }
+    return Collections.unmodifiableList(pools);
+  }
+
+  /** How a document is written out. */
+  public static final class SerializeOptions {
+    /** No indenting and no XML declaration. */
+    public static final SerializeOptions COMPACT = new SerializeOptions(false, false);
+
+    private final boolean pretty;
+    private final boolean declaration;
+
+    /**
+     * @param pretty whether to indent the output.
+     * @param declaration whether to start with an XML declaration.
+     */
+    public SerializeOptions(boolean pretty, boolean declaration) {
+      this.pretty = pretty;
+      this.declaration = declaration;
+    }
+
+    public boolean isPretty() {
+      return pretty;
+    }
+
+    public boolean hasDeclaration() {
+      return declaration;
+    }
+
+    private int index() {
+      return (pretty ? 1 : 0) | (declaration ? 2 : 0);
+    }
+  }
 
+  // prevent DTD entities from being resolved.
+  private static final EntityResolver emptyEntityResolver =
+      new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId)
+            throws SAXException, IOException {
+          return new InputSource(new StringReader(""));
+        }
+      };
+
+  private static DocumentBuilderFactory newBuilderFactory() {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      return factory;
+    } catch (ParserConfigurationException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      builder = builderFactory.newDocumentBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    // reset() drops the resolver, so set it every time
+    builder.setEntityResolver(emptyEntityResolver);
     return builder;
   }
 
+  /**
+   * Get this thread's Transformer that copies its source, without an XML declaration.
+   *
+   * @param pretty whether to indent the output.
+   */
+  static Transformer getTransformer(boolean pretty) throws TransformerConfigurationException {
+    return getTransformer(pretty ? PRETTY : SerializeOptions.COMPACT);
+  }
+
+  /** Get this thread's Transformer that copies its source, as UTF-8 when writing bytes. */
+  static Transformer getTransformer(SerializeOptions options)
+      throws TransformerConfigurationException {
+    ThreadLocal<Transformer> pool = transformers.get(options.index());
+    Transformer transformer = pool.get();
+    if (transformer == null) {
+      transformer = transformerFactory.newTransformer();
+      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      if (!options.hasDeclaration()) transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      if (options.isPretty()) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      pool.set(transformer);
+    }
+    return transformer;
+  }
+
   public static Document parseXml(InputStream in)
       throws IOException, SAXException, ParserConfigurationException {
     DocumentBuilder builder = getBuilder();
@@ -80,11 +189,42 @@ public class XmlUtils {
     DOMSource domSource = new DOMSource(doc);
     StringWriter writer = new StringWriter();
     StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    if (pretty) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-    transformer.transform(domSource, result);
+    getTransformer(pretty).transform(domSource, result);
     return writer.toString();
   }
+
+  /**
+   * Serialize a document straight to UTF-8 bytes, with no intermediate String.
+   *
+   * @param doc the document.
+   * @param out receives the bytes. It is not closed.
+   */
+  public static void writeTo(Document doc, OutputStream out, SerializeOptions options)
+      throws TransformerException {
+    writeTo(new DOMSource(doc), out, options);
+  }
+
+  public static void writeTo(Source source, OutputStream out, SerializeOptions options)
+      throws TransformerException {
+    getTransformer(options).transform(source, new StreamResult(out));
+  }
+
+  /**
+   * Show the events of a document to a collector, without writing anything.
+   *
+   * @param in the document.
+   * @param collector reading stops once it needs no more events.
+   */
+  public static void scan(InputStream in, EventCollector collector) throws XMLStreamException {
+    XMLEventReader reader = staxInputFactory.createXMLEventReader(in);
+    try {
+      while (reader.hasNext()) {
+        if (collector.add(reader.nextEvent())) {
+          break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
 }
@@ -0,0 +1,200 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.Base64TextDecoder;
+import com.google.apigee.ChunkBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Turns the base64 text of chosen elements into binary attachments, replacing the text with
+ * xop:Include elements, as a stream of StAX events. This is the reverse of embedding.
+ *
+ * <p>The text of each chosen element is decoded one character event at a time, so it is never
+ * held as a single String. Elements are chosen by name; a name without a namespace matches
+ * that local name in any namespace. The content-type of an attachment is taken from the
+ * xmime:contentType attribute of its element, if there is one. The XML declaration and any DTD
+ * are not copied.
+ */
+public class XopOptimizer {
+  public static final String XMIME_NS = "http://www.w3.org/2005/05/xmlmime";
+  private static final QName CONTENT_TYPE = new QName(XMIME_NS, "contentType");
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  private static final XMLInputFactory inputFactory = XmlUtils.newStaxInputFactory();
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+  private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+  private static final Base64.Encoder b64Encoder = Base64.getEncoder();
+
+  private final List<QName> names;
+  private final int threshold;
+
+  /** The decoded content of one element. */
+  public static class Attachment {
+    private final String contentId;
+    private final String contentType;
+    private final ChunkBuffer data;
+
+    Attachment(String contentId, String contentType, ChunkBuffer data) {
+      this.contentId = contentId;
+      this.contentType = contentType;
+      this.data = data;
+    }
+
+    /** @return the Content-ID, without angle brackets. */
+    public String getContentId() {
+      return contentId;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public long size() {
+      return data.size();
+    }
+
+    /** Write the decoded bytes, without copying them first, and let go of them. */
+    public void writeTo(OutputStream out) throws IOException {
+      data.writeTo(out);
+      data.release();
+    }
+  }
+
+  /**
+   * @param names the elements to optimize.
+   * @param threshold the fewest decoded bytes worth an attachment, smaller content stays inline.
+   */
+  public XopOptimizer(List<QName> names, int threshold) {
+    if (names.isEmpty()) {
+      throw new IllegalArgumentException("no elements");
+    }
+    this.names = new ArrayList<QName>(names);
+    this.threshold = threshold;
+  }
+
+  private boolean matches(QName name) {
+    for (QName q : names) {
+      if (q.getLocalPart().equals(name.getLocalPart())
+          && (q.getNamespaceURI().isEmpty() || q.getNamespaceURI().equals(name.getNamespaceURI()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Copy a document, moving the content of the chosen elements into attachments.
+   *
+   * @param in the document.
+   * @param out receives the optimized document, encoded as UTF-8.
+   * @return the attachments, in document order.
+   */
+  public List<Attachment> optimize(InputStream in, OutputStream out)
+      throws XMLStreamException, IOException {
+    List<Attachment> attachments = new ArrayList<Attachment>();
+    XMLEventReader reader = inputFactory.createXMLEventReader(in);
+    XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+    try {
+      // the element being decoded, with its data
+      QName decoding = null;
+      String contentType = null;
+      ChunkBuffer data = null;
+      Base64TextDecoder decoder = null;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (decoding != null) {
+          switch (event.getEventType()) {
+            case XMLEvent.CHARACTERS:
+            case XMLEvent.CDATA:
+              decoder.write(event.asCharacters().getData());
+              continue;
+            case XMLEvent.COMMENT:
+            case XMLEvent.PROCESSING_INSTRUCTION:
+              continue;
+            case XMLEvent.END_ELEMENT:
+              decoder.finish();
+              if (data.size() >= threshold && data.size() > 0) {
+                String cid = UUID.randomUUID().toString() + "@apigee";
+                attachments.add(new Attachment(cid, contentType, data));
+                writer.add(
+                    eventFactory.createStartElement(
+                        "xop",
+                        XopSplitter.XOP_NS,
+                        "Include",
+                        Collections.singletonList(eventFactory.createAttribute("href", "cid:" + cid))
+                            .iterator(),
+                        Collections.singletonList(
+                                eventFactory.createNamespace("xop", XopSplitter.XOP_NS))
+                            .iterator()));
+                writer.add(eventFactory.createEndElement("xop", XopSplitter.XOP_NS, "Include"));
+              } else if (data.size() > 0) {
+                writer.add(eventFactory.createCharacters(b64Encoder.encodeToString(data.toByteArray())));
+                data.release();
+              }
+              decoding = null;
+              data = null;
+              decoder = null;
+              break;
+            default:
+              throw new IllegalStateException(
+                  String.format("element %s holds more than base64 text", decoding));
+          }
+        } else {
+          switch (event.getEventType()) {
+            case XMLEvent.START_DOCUMENT:
+            case XMLEvent.DTD:
+              continue;
+            case XMLEvent.START_ELEMENT:
+              StartElement start = event.asStartElement();
+              if (matches(start.getName())) {
+                decoding = start.getName();
+                Attribute ctype = start.getAttributeByName(CONTENT_TYPE);
+                contentType = (ctype == null) ? DEFAULT_CONTENT_TYPE : ctype.getValue();
+                data = new ChunkBuffer();
+                decoder = new Base64TextDecoder(data);
+              }
+              break;
+            default:
+              break;
+          }
+        }
+        writer.add(event);
+      }
+      writer.flush();
+      return attachments;
+    } finally {
+      reader.close();
+      writer.close();
+    }
+  }
+}
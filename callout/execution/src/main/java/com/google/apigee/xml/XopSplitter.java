@@ -0,0 +1,161 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.ChunkBuffer;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Splits the root part of a XOP package at its xop:Include elements, as a stream of StAX
+ * events.
+ *
+ * <p>The result holds the serialized XML around each xop:Include, as UTF-8, in one {@link
+ * ChunkBuffer}, and the href of each xop:Include in document order. The Include elements
+ * themselves are left out, so the caller can put the content of each referenced attachment
+ * between the segments without ever building a DOM. The XML declaration and any DTD are not
+ * copied.
+ */
+public class XopSplitter {
+  public static final String XOP_NS = "http://www.w3.org/2004/08/xop/include";
+  private static final QName INCLUDE = new QName(XOP_NS, "Include");
+  private static final QName HREF = new QName("href");
+
+  private static final XMLInputFactory inputFactory = XmlUtils.newStaxInputFactory();
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+  private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+  /** The segments of a split document. There is always one more segment than href. */
+  public static class Result {
+    private final ChunkBuffer xml;
+    private final List<Long> cuts;
+    private final List<String> hrefs;
+
+    Result(ChunkBuffer xml, List<Long> cuts, List<String> hrefs) {
+      this.xml = xml;
+      this.cuts = cuts;
+      this.hrefs = Collections.unmodifiableList(hrefs);
+    }
+
+    /**
+     * @return the XML before the first xop:Include, between each pair, and after the last,
+     *     each as a stream over the buffered XML.
+     */
+    public List<InputStream> getSegments() {
+      List<InputStream> segments = new ArrayList<InputStream>(cuts.size() + 1);
+      long from = 0;
+      for (long cut : cuts) {
+        segments.add(xml.newInputStream(from, cut));
+        from = cut;
+      }
+      segments.add(xml.newInputStream(from, xml.size()));
+      return segments;
+    }
+
+    /** Let go of the buffered XML, once the segments have been read. */
+    public void release() {
+      xml.release();
+    }
+
+    /** @return the href of each xop:Include, such as cid:image@insurance.com. */
+    public List<String> getHrefs() {
+      return hrefs;
+    }
+  }
+
+  /**
+   * Split a document at its xop:Include elements.
+   *
+   * @param in the document.
+   * @return the segments and hrefs.
+   */
+  public Result split(InputStream in) throws XMLStreamException {
+    return split(in, null);
+  }
+
+  /**
+   * Split a document at its xop:Include elements, and show every event to a collector.
+   *
+   * @param collector the collector, or null.
+   */
+  public Result split(InputStream in, EventCollector collector)
+      throws XMLStreamException {
+    ChunkBuffer out = new ChunkBuffer();
+    // where each segment ends, but the last
+    List<Long> cuts = new ArrayList<Long>();
+    List<String> hrefs = new ArrayList<String>();
+    XMLEventReader reader = inputFactory.createXMLEventReader(in);
+    XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+    try {
+      // depth within the xop:Include being dropped, or 0
+      int skipping = 0;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (collector != null) {
+          collector.add(event);
+        }
+        if (skipping > 0) {
+          if (event.isStartElement()) {
+            skipping++;
+          } else if (event.isEndElement()) {
+            skipping--;
+          }
+          continue;
+        }
+        switch (event.getEventType()) {
+          case XMLEvent.START_DOCUMENT:
+          case XMLEvent.DTD:
+            continue;
+          case XMLEvent.START_ELEMENT:
+            StartElement start = event.asStartElement();
+            if (INCLUDE.equals(start.getName())) {
+              Attribute href = start.getAttributeByName(HREF);
+              if (href == null) {
+                throw new IllegalStateException("xop:Include element without an href");
+              }
+              hrefs.add(href.getValue());
+              // an empty text event closes the parent's start tag
+              writer.add(eventFactory.createCharacters(""));
+              writer.flush();
+              cuts.add(out.size());
+              skipping = 1;
+              continue;
+            }
+            break;
+          default:
+            break;
+        }
+        writer.add(event);
+      }
+      writer.flush();
+      return new Result(out, cuts, hrefs);
+    } finally {
+      reader.close();
+      writer.close();
+    }
+  }
+}
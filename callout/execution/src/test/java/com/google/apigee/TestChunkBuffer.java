@@ -0,0 +1,182 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestChunkBuffer {
+  private static final int CHUNK = ChunkBuffer.CHUNK_SIZE;
+
+  // bytes that differ from one offset to the next, across chunk boundaries
+  private static byte[] pattern(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+    return data;
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void writeAcrossChunks() throws Exception {
+    byte[] data = pattern(2 * CHUNK + 17);
+    ChunkBuffer buffer = new ChunkBuffer();
+    // a single byte, a write that ends on a boundary, then one that spans two
+    buffer.write(data[0]);
+    buffer.write(data, 1, CHUNK - 1);
+    buffer.write(data, CHUNK, data.length - CHUNK);
+    Assert.assertEquals(buffer.size(), (long) data.length);
+    Assert.assertEquals(buffer.toByteArray(), data);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    Assert.assertEquals(out.toByteArray(), data);
+    Assert.assertEquals(readAll(buffer.newInputStream()), data);
+    buffer.release();
+  }
+
+  @Test
+  public void readFromAcrossChunks() throws Exception {
+    for (int length : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK}) {
+      byte[] data = pattern(length);
+      ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(data));
+      Assert.assertEquals(buffer.size(), (long) length, "size");
+      Assert.assertEquals(buffer.toByteArray(), data, "length " + length);
+      buffer.release();
+    }
+  }
+
+  @Test
+  public void readByteByByteAcrossChunks() throws Exception {
+    byte[] data = pattern(CHUNK + 3);
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(data));
+    InputStream in = buffer.newInputStream();
+    for (int i = 0; i < data.length; i++) {
+      Assert.assertEquals(in.read(), data[i] & 0xff, "offset " + i);
+    }
+    Assert.assertEquals(in.read(), -1);
+    buffer.release();
+  }
+
+  @Test
+  public void rangesAcrossChunks() throws Exception {
+    byte[] data = pattern(3 * CHUNK);
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(data));
+    long[][] ranges = {
+      {0, 0}, {0, 10}, {CHUNK - 5, CHUNK + 5}, {CHUNK, 2 * CHUNK}, {10, 3 * CHUNK - 10},
+      {3 * CHUNK, 3 * CHUNK}, {0, 3 * CHUNK}
+    };
+    for (long[] range : ranges) {
+      InputStream in = buffer.newInputStream(range[0], range[1]);
+      Assert.assertEquals(in.available(), (int) (range[1] - range[0]), "available");
+      Assert.assertEquals(
+          readAll(in),
+          Arrays.copyOfRange(data, (int) range[0], (int) range[1]),
+          range[0] + ".." + range[1]);
+    }
+    // a range can be read again, and skipped into
+    InputStream in = buffer.newInputStream(CHUNK - 2, CHUNK + 2);
+    Assert.assertEquals(in.skip(3), 3L);
+    Assert.assertEquals(in.read(), data[CHUNK + 1] & 0xff);
+    Assert.assertEquals(in.read(), -1);
+    Assert.assertEquals(buffer.size(), (long) data.length);
+    buffer.release();
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void rangePastTheEnd() {
+    ChunkBuffer buffer = new ChunkBuffer();
+    buffer.write(pattern(10), 0, 10);
+    buffer.newInputStream(5, 11);
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void rangeBackwards() {
+    ChunkBuffer buffer = new ChunkBuffer();
+    buffer.write(pattern(10), 0, 10);
+    buffer.newInputStream(6, 5);
+  }
+
+  @Test
+  public void toInputStreamGivesChunksBackAtTheEnd() throws Exception {
+    byte[] data = pattern(2 * CHUNK + 1);
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(data));
+    // taken after the buffer took its three chunks, so the pool has room for them
+    int pooled = ChunkBuffer.pooledChunks();
+    InputStream in = buffer.toInputStream();
+    Assert.assertEquals(buffer.size(), 0L, "buffer left empty");
+    byte[] head = new byte[CHUNK];
+    Assert.assertEquals(in.read(head), CHUNK);
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled, "given back while being read");
+    Assert.assertEquals(readAll(in), Arrays.copyOfRange(data, CHUNK, data.length));
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled + 3, "given back at the end");
+    // once only
+    Assert.assertEquals(in.read(), -1);
+    in.close();
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled + 3, "given back twice");
+  }
+
+  @Test
+  public void toInputStreamGivesChunksBackOnClose() throws Exception {
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(pattern(CHUNK + 1)));
+    int pooled = ChunkBuffer.pooledChunks();
+    InputStream in = buffer.toInputStream();
+    Assert.assertEquals(in.read(), 0);
+    in.close();
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled + 2);
+    Assert.assertEquals(in.read(), -1, "read after close");
+  }
+
+  @Test
+  public void newInputStreamKeepsTheChunks() throws Exception {
+    byte[] data = pattern(CHUNK + 1);
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(data));
+    int pooled = ChunkBuffer.pooledChunks();
+    InputStream in = buffer.newInputStream();
+    readAll(in);
+    in.close();
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled);
+    Assert.assertEquals(buffer.toByteArray(), data);
+    buffer.release();
+  }
+
+  @Test
+  public void releaseGivesChunksBack() throws Exception {
+    ChunkBuffer buffer = new ChunkBuffer().readFrom(new ByteArrayInputStream(pattern(CHUNK + 1)));
+    int pooled = ChunkBuffer.pooledChunks();
+    buffer.release();
+    Assert.assertEquals(ChunkBuffer.pooledChunks(), pooled + 2);
+    Assert.assertEquals(buffer.size(), 0L);
+    Assert.assertEquals(buffer.toByteArray(), new byte[0]);
+    // still usable
+    byte[] data = pattern(5);
+    buffer.write(data, 0, data.length);
+    Assert.assertEquals(buffer.toByteArray(), data);
+    buffer.release();
+  }
+}
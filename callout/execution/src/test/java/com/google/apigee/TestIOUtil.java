@@ -0,0 +1,77 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIOUtil {
+  private static final byte[] DATA = pattern(3 * ChunkBuffer.CHUNK_SIZE + 5);
+
+  private static byte[] pattern(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+    return data;
+  }
+
+  // hands out a few bytes at a time, as a network stream does
+  private static InputStream trickle(byte[] data) {
+    return new ByteArrayInputStream(data) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+  }
+
+  @Test
+  public void readAllBytesWithoutHint() throws Exception {
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA)), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(new byte[0])), new byte[0]);
+  }
+
+  @Test
+  public void readAllBytesWithExactHint() throws Exception {
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), DATA.length), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(new byte[0]), 0), new byte[0]);
+  }
+
+  @Test
+  public void readAllBytesWithShortHint() throws Exception {
+    // the stream holds more than promised
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), 10), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), DATA.length - 1), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), 0), DATA);
+  }
+
+  @Test
+  public void readAllBytesWithLongHint() throws Exception {
+    // the stream holds less than promised
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), DATA.length + 1), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(new byte[0]), 100), new byte[0]);
+  }
+
+  @Test
+  public void readAllBytesWithHugeHint() throws Exception {
+    // not allocated for: a header can claim any size
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), Integer.MAX_VALUE - 8), DATA);
+    Assert.assertEquals(IOUtil.readAllBytes(trickle(DATA), Long.MAX_VALUE), DATA);
+  }
+}
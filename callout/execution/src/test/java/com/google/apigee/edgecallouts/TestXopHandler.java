@@ -20,14 +20,32 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.github.danieln.multipart.MultipartInput;
+import com.github.danieln.multipart.PartInput;
 import com.google.apigee.xml.XmlUtils;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import mockit.Mock;
 import mockit.MockUp;
 import org.apache.commons.io.IOUtils;
@@ -122,6 +140,11 @@ public class TestXopHandler {
             return (String) msgCtxt.getVariable("message.header." + name.toLowerCase());
           }
 
+          @Mock()
+          public void setHeader(String name, Object value) {
+            msgCtxt.setVariable("message.header." + name.toLowerCase(), value);
+          }
+
           @Mock()
           public void setContent(InputStream is) {
             // System.out.printf("\n** setContent(Stream)\n");
@@ -267,6 +290,242 @@ public class TestXopHandler {
     Assert.assertNotNull(output, "no output");
   }
 
+  @Test
+  public void withEditActionSplicesAttachment() throws Exception {
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+
+    XopHandler callout = new XopHandler(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertTrue(
+        output.startsWith(
+            "\r\n--MIME_boundary\r\n"
+                + "Content-Type: application/soap+xml; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n"
+                + "Content-ID: <rootpart@soapui.org>\r\n"
+                + "\r\n"),
+        "first part headers kept in order and case");
+    Assert.assertFalse(output.contains("UsernameToken"), "token removed");
+    Assert.assertTrue(output.contains("<wsse:Security"), "rest of the header kept");
+    Assert.assertNull(msgCtxt.getVariable("xop_transformed"), "transformed only set when debugging");
+
+    // the attachment and everything after it is passed on as it was
+    String rest = msg1.substring(msg1.indexOf("\n--MIME_boundary\nContent-Type: application/zip"));
+    Assert.assertTrue(output.endsWith(rest), "attachment spliced verbatim");
+  }
+
+  @Test
+  public void withEditActionDomFallback() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    props.put("streaming", "false");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String transformed = msgCtxt.getVariable("xop_transformed");
+    Assert.assertNotNull(transformed, "transformed");
+    Assert.assertFalse(transformed.contains("UsernameToken"), "token removed");
+    Assert.assertNotNull(XmlUtils.parseXml(transformed), "cannot instantiate XML document");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertFalse(output.contains("UsernameToken"), "token removed");
+    String rest = msg1.substring(msg1.indexOf("\n--MIME_boundary\nContent-Type: application/zip"));
+    Assert.assertTrue(output.endsWith(rest), "attachment spliced verbatim");
+  }
+
+  @Test
+  public void withEditActionTwoTokens() throws Exception {
+    // the streaming filter and the DOM fallback remove the same tokens
+    int start = msg1.indexOf("      <wsse:UsernameToken");
+    int end = msg1.indexOf("</wsse:UsernameToken>\n") + "</wsse:UsernameToken>\n".length();
+    String twoTokens = msg1.substring(0, end) + msg1.substring(start);
+    for (String streaming : new String[] {"true", "false"}) {
+      beforeMethod();
+      msgCtxt.setVariable(
+          "message.header.content-type",
+          "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+      msgCtxt.setVariable("message.content", twoTokens);
+
+      Properties props = new Properties();
+      props.put("source", "message");
+      props.put("action", "edit_1");
+      props.put("streaming", streaming);
+
+      XopHandler callout = new XopHandler(props);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult " + streaming);
+      Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+      String output = msgCtxt.getMessage().getContent();
+      Assert.assertFalse(output.contains("UsernameToken"), "tokens removed, streaming=" + streaming);
+      Assert.assertTrue(output.contains("<wsse:Security"), "rest of the header kept");
+      String rest =
+          twoTokens.substring(twoTokens.indexOf("\n--MIME_boundary\nContent-Type: application/zip"));
+      Assert.assertTrue(output.endsWith(rest), "attachment spliced verbatim");
+    }
+  }
+
+  @Test
+  public void withEditActionDomSerializeOptions() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    props.put("streaming", "false");
+    props.put("pretty-print", "true");
+    props.put("xml-declaration", "true");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String transformed = msgCtxt.getVariable("xop_transformed");
+    Assert.assertTrue(transformed.startsWith("<?xml "), "declaration");
+    Assert.assertTrue(transformed.contains("\n    <"), "indented");
+    Assert.assertNotNull(XmlUtils.parseXml(transformed), "cannot instantiate XML document");
+  }
+
+  @Test
+  public void withEditActionExtractXPaths() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    props.put("xmlns:ucm", "http://www.oracle.com/UCM");
+    props.put(
+        "extract-xpaths",
+        "//Field[@name='dDocName'], //ucm:Service/@IdcService, //Username, //Missing");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    Assert.assertEquals(msgCtxt.getVariable("xop_xpath.1"), "201807111403445918-1-464");
+    Assert.assertEquals(msgCtxt.getVariable("xop_xpath.2"), "CHECKIN_UNIVERSAL");
+    // found in the original, before the token is removed
+    Assert.assertEquals(msgCtxt.getVariable("xop_xpath.3"), "XXXXXX");
+    Assert.assertNull(msgCtxt.getVariable("xop_xpath.4"), "no match");
+    Assert.assertEquals(msgCtxt.getVariable("xop_xpath_found"), "3");
+  }
+
+  @Test
+  public void withEditActionSchema() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    // resources on the test classpath
+    props.put("schema", "/xsd/soap-envelope.xsd, /xsd/ucm-request.xsd");
+    props.put("extract-xpaths", "//Field[@name='dDocName']");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+    Assert.assertEquals(msgCtxt.getVariable("xop_xpath.1"), "201807111403445918-1-464");
+  }
+
+  @Test
+  public void withEditActionSchemaInvalid() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    // a Field without its name attribute
+    msgCtxt.setVariable("message.content", msg1.replace("<Field name='UserTimeZone'>", "<Field>"));
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    props.put("schema", "/xsd/soap-envelope.xsd, /xsd/ucm-request.xsd");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    String error = (String) msgCtxt.getVariable("xop_error");
+    Assert.assertNotNull(error, "error");
+    Assert.assertTrue(error.startsWith("schema validation failed"), error);
+    Assert.assertTrue(error.contains("'name'"), error);
+  }
+
+  @Test
+  public void withEditXPathAction() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<rootpart@soapui.org>'");
+
+    msgCtxt.setVariable("message.content", msg1);
+    msgCtxt.setVariable("docname", "renamed-464");
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_xpath");
+    props.put("xmlns:wsse", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd");
+    props.put("edit.1", "remove /Envelope/Header/wsse:Security");
+    props.put("edit.2", "replace //Field[@name='dDocName'] {docname}");
+    props.put("edit.3", "insert /Envelope/Header <t:Trace xmlns:t='urn:trace'>1</t:Trace>");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+    Assert.assertEquals(msgCtxt.getVariable("xop_edit_count"), "3");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertFalse(output.contains("wsse:Security"), "header removed");
+    Assert.assertTrue(output.contains(">renamed-464</Field>"), "field replaced");
+    Assert.assertTrue(output.contains("<t:Trace xmlns:t=\"urn:trace\">1</t:Trace>"), "inserted");
+    String rest = msg1.substring(msg1.indexOf("\n--MIME_boundary\nContent-Type: application/zip"));
+    Assert.assertTrue(output.endsWith(rest), "attachment spliced verbatim");
+  }
+
   @Test
   public void withBogusAction() throws Exception {
     msgCtxt.setVariable("message.header.mime-version", "1.0");
@@ -367,6 +626,323 @@ public class TestXopHandler {
     Assert.assertNotNull(xmlDoc, "cannot instantiate XML document");
   }
 
+  @Test
+  public void withEmbedActionStreamsAttachment() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<claim@insurance.com>'");
+
+    msgCtxt.setVariable("message.content", msg2);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "transform_to_embedded");
+    props.put("part2-ctypes", "image/bmp");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertFalse(output.contains("Include"), "xop:Include replaced");
+    Document xmlDoc = XmlUtils.parseXml(output);
+    String encoded = xmlDoc.getElementsByTagName("image").item(0).getTextContent();
+    Assert.assertEquals(
+        new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8),
+        "...binary BMP image...\n");
+  }
+
+  @Test
+  public void withEmbedActionDomFallback() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/soap+xml'; start='<claim@insurance.com>'");
+
+    msgCtxt.setVariable("message.content", msg2);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "transform_to_embedded");
+    props.put("part2-ctypes", "image/bmp");
+    props.put("streaming", "false");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    Document xmlDoc = XmlUtils.parseXml(msgCtxt.getMessage().getContent());
+    String encoded = xmlDoc.getElementsByTagName("image").item(0).getTextContent();
+    Assert.assertEquals(
+        new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8),
+        "...binary BMP image...\n");
+  }
+
+  private static final String msg6 =
+      ""
+          + "--MIME_boundary\n"
+          + "Content-Type: image/png\n"
+          + "Content-ID: <front@insurance.com>\n"
+          + "\n"
+          + "...front PNG...\n"
+          + "--MIME_boundary\n"
+          + "Content-Type: application/xop+xml; charset=UTF-8\n"
+          + "Content-ID: <claim@insurance.com>\n"
+          + "\n"
+          + "<claim xmlns:xop='http://www.w3.org/2004/08/xop/include'>"
+          + "<back><xop:Include href='cid:back@insurance.com'/></back>"
+          + "<front><xop:Include href='cid:front@insurance.com'/></front>"
+          + "<side><xop:Include href='cid:side%40insurance.com'/></side>"
+          + "</claim>\n"
+          + "--MIME_boundary\n"
+          + "Content-Type: image/png\n"
+          + "Content-ID: <side@insurance.com>\n"
+          + "\n"
+          + "...side PNG...\n"
+          + "--MIME_boundary\n"
+          + "Content-Type: image/png\n"
+          + "Content-ID: <back@insurance.com>\n"
+          + "\n"
+          + "...back PNG...\n"
+          + "--MIME_boundary--\n";
+
+  private static String decodeElement(Document xmlDoc, String name) {
+    String encoded = xmlDoc.getElementsByTagName(name).item(0).getTextContent();
+    return new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void withEmbedActionSeveralAttachments() throws Exception {
+    for (String streaming : new String[] {"true", "false"}) {
+      beforeMethod();
+      msgCtxt.setVariable(
+          "message.header.content-type",
+          "Multipart/Related; boundary=MIME_boundary; type='application/xop+xml'; start='<claim@insurance.com>'");
+
+      msgCtxt.setVariable("message.content", msg6);
+
+      Properties props = new Properties();
+      props.put("source", "message");
+      props.put("action", "transform_to_embedded");
+      props.put("streaming", streaming);
+
+      XopHandler callout = new XopHandler(props);
+
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+      Document xmlDoc = XmlUtils.parseXml(msgCtxt.getMessage().getContent());
+      Assert.assertEquals(decodeElement(xmlDoc, "front"), "...front PNG...");
+      Assert.assertEquals(decodeElement(xmlDoc, "side"), "...side PNG...");
+      Assert.assertEquals(decodeElement(xmlDoc, "back"), "...back PNG...");
+    }
+  }
+
+  @Test
+  public void withEmbedResolverSkipsUnreferencedParts() throws Exception {
+    char[] filler = new char[200000];
+    Arrays.fill(filler, 'x');
+    String xop =
+        ""
+            + "--MIME_boundary\n"
+            + "Content-Type: image/png\n"
+            + "Content-ID: <before@insurance.com>\n"
+            + "\n"
+            + new String(filler)
+            + "\n--MIME_boundary\n"
+            + "Content-Type: application/xop+xml; charset=UTF-8\n"
+            + "Content-ID: <claim@insurance.com>\n"
+            + "\n"
+            + "<claim xmlns:xop='http://www.w3.org/2004/08/xop/include'>"
+            + "<front><xop:Include href='cid:front@insurance.com'/></front>"
+            + "</claim>\n"
+            + "--MIME_boundary\n"
+            + "Content-Type: image/png\n"
+            + "Content-ID: <between@insurance.com>\n"
+            + "\n"
+            + new String(filler)
+            + "\n--MIME_boundary\n"
+            + "Content-Type: image/png\n"
+            + "Content-ID: <front@insurance.com>\n"
+            + "\n"
+            + "...front PNG...\n"
+            + "--MIME_boundary--\n";
+    MultipartInput mpi =
+        new MultipartInput(
+            new ByteArrayInputStream(xop.getBytes(StandardCharsets.UTF_8)),
+            "multipart/related; boundary=MIME_boundary");
+    AttachmentResolver resolver = new AttachmentResolver(mpi, ctype -> true);
+    PartInput root = resolver.findRoot("<claim@insurance.com>");
+    IOUtils.copy(root.getInputStream(), new ByteArrayOutputStream());
+    // the references are not known yet, so the part before the root is kept
+    Assert.assertEquals(resolver.bufferedParts(), 1, "buffered before the root");
+    resolver.expect(Arrays.asList("cid:front@insurance.com"));
+    Assert.assertEquals(resolver.bufferedParts(), 0, "buffered once the references are known");
+    ByteArrayOutputStream front = new ByteArrayOutputStream();
+    IOUtils.copy(resolver.open("cid:front@insurance.com"), front);
+    Assert.assertEquals(front.toString("UTF-8"), "...front PNG...");
+    // the part between the root and the attachment was read past, not kept
+    Assert.assertEquals(resolver.bufferedParts(), 0, "buffered after the attachment");
+  }
+
+  @Test
+  public void withExtractActionSeveralAttachments() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/xop+xml'; start='<claim@insurance.com>'");
+
+    msgCtxt.setVariable("message.content", msg6);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    Assert.assertEquals(msgCtxt.getVariable("xop_attachment_count"), "3");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_attachment_ids"),
+        "front@insurance.com,side@insurance.com,back@insurance.com");
+    String base64 = msgCtxt.getVariable("xop_base64Encoded.back@insurance.com");
+    Assert.assertEquals(
+        new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8), "...back PNG...");
+  }
+
+  @Test
+  public void withEmbeddedToXopAction() throws Exception {
+    byte[] image = new byte[10000];
+    new Random(11).nextBytes(image);
+    String xml =
+        ""
+            + "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+            + " <soap:Body>\n"
+            + "  <m:submitClaim xmlns:m='urn:claims' xmlns:xmime='http://www.w3.org/2005/05/xmlmime'>\n"
+            + "   <m:image xmime:contentType='image/png'>\n"
+            + Base64.getMimeEncoder().encodeToString(image)
+            + "\n   </m:image>\n"
+            + "   <m:thumb>QUJD</m:thumb>\n"
+            + "  </m:submitClaim>\n"
+            + " </soap:Body>\n"
+            + "</soap:Envelope>\n";
+    msgCtxt.setVariable("message.header.content-type", "text/xml; charset=UTF-8");
+    msgCtxt.setVariable("message.content", xml);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "embedded_to_xop");
+    props.put("xmlns:m", "urn:claims");
+    props.put("xop-elements", "m:image, m:thumb");
+    props.put("xop-threshold", "1024");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+    Assert.assertEquals(msgCtxt.getVariable("xop_attachment_count"), "1");
+
+    // embed it again, and check that the image survived the trip
+    String contentType = (String) msgCtxt.getVariable("message.header.content-type");
+    Assert.assertTrue(contentType.startsWith("multipart/related;"), contentType);
+    Assert.assertTrue(contentType.contains("type=\"application/xop+xml\""), contentType);
+    InputStream xopPackage = messageContentStream;
+    beforeMethod();
+    msgCtxt.setVariable("message.header.content-type", contentType);
+    messageContentStream = xopPackage;
+
+    props = new Properties();
+    props.put("source", "message");
+    props.put("action", "transform_to_embedded");
+    props.put("part2-ctypes", "image/png");
+
+    callout = new XopHandler(props);
+
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    Document xmlDoc = XmlUtils.parseXml(msgCtxt.getMessage().getContent());
+    String encoded = xmlDoc.getElementsByTagName("m:image").item(0).getTextContent();
+    Assert.assertEquals(Base64.getDecoder().decode(encoded), image);
+    Assert.assertEquals(xmlDoc.getElementsByTagName("m:thumb").item(0).getTextContent(), "QUJD");
+  }
+
+  @Test
+  public void withEmbeddedToXopActionBadThreshold() throws Exception {
+    String[][] cases = {
+      {"-1", "configuration error: xop-threshold must not be negative (-1)"},
+      {"1k", "configuration error: xop-threshold is not a number (1k)"},
+      {"4294967296", "configuration error: xop-threshold is out of range (4294967296)"}
+    };
+    for (String[] c : cases) {
+      beforeMethod();
+      msgCtxt.setVariable("message.header.content-type", "text/xml; charset=UTF-8");
+      msgCtxt.setVariable(
+          "message.content",
+          "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>"
+              + "<soap:Body><m:image xmlns:m='urn:claims'>QUJD</m:image></soap:Body>"
+              + "</soap:Envelope>");
+      Properties props = new Properties();
+      props.put("source", "message");
+      props.put("action", "embedded_to_xop");
+      props.put("xmlns:m", "urn:claims");
+      props.put("xop-elements", "m:image");
+      props.put("xop-threshold", c[0]);
+      XopHandler callout = new XopHandler(props);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult " + c[0]);
+      Assert.assertEquals(msgCtxt.getVariable("xop_error"), c[1]);
+    }
+  }
+
+  @Test
+  public void withBuildXopAction() throws Exception {
+    msgCtxt.setVariable("message.header.content-type", "application/pdf");
+    msgCtxt.setVariable("message.header.content-length", "25");
+    msgCtxt.setVariable(
+        "envelope",
+        ""
+            + "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>"
+            + "<soap:Body><upload><file>"
+            + "<xop:Include xmlns:xop='http://www.w3.org/2004/08/xop/include' href='cid:{xop_attachment_cid}'/>"
+            + "</file></upload></soap:Body></soap:Envelope>");
+    msgCtxt.setVariable("message.content", "%PDF-1.5 ...binary PDF...");
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "build_xop");
+    props.put("envelope-variable", "envelope");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String contentType = (String) msgCtxt.getVariable("message.header.content-type");
+    Assert.assertTrue(contentType.startsWith("multipart/related;"), contentType);
+    String cid = msgCtxt.getVariable("xop_attachment_cid");
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertTrue(output.contains("href='cid:" + cid + "'"), "envelope refers to the attachment");
+    Assert.assertTrue(
+        output.contains(
+            "Content-Type: application/pdf\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "Content-ID: <" + cid + ">\r\n"
+                + "Content-Length: 25\r\n"
+                + "\r\n"
+                + "%PDF-1.5 ...binary PDF...\r\n--"),
+        "attachment part");
+  }
+
   @Test
   public void unacceptableContentType() throws Exception {
     msgCtxt.setVariable("message.header.mime-version", "1.0");
@@ -501,6 +1077,652 @@ public class TestXopHandler {
     Assert.assertNotNull(base64encod, "cannot instantiate XML document");
   }
 
+  private static final String msg5 =
+      ""
+          + "--MIME_boundary\n"
+          + "Content-Type: image/png\n"
+          + "Content-Transfer-Encoding: binary\n"
+          + "Content-ID: <image@insurance.com>\n"
+          + "\n"
+          + "...binary PNG image...\n"
+          + "--MIME_boundary\n"
+          + "Content-Type: application/xop+xml; charset=UTF-8\n"
+          + "Content-ID: <claim@insurance.com>\n"
+          + "\n"
+          + "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'/>\n"
+          + "--MIME_boundary--\n";
+
+  @Test
+  public void withExtractActionRootNotFirst() throws Exception {
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        "Multipart/Related; boundary=MIME_boundary; type='application/xop+xml'; start='<claim@insurance.com>'");
+
+    msgCtxt.setVariable("message.content", msg5);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String xml = msgCtxt.getVariable("xop_extracted_xml");
+    Assert.assertEquals(
+        xml, "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'/>");
+    String base64 = msgCtxt.getVariable("xop_base64Encoded");
+    Assert.assertEquals(
+        new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8),
+        "...binary PNG image...");
+  }
+
+  // serves /docs/{id}/body: a fixed document with an ETag for "big", the
+  // first 3000 bytes of it for "small-*", 404 for "missing", and a stalled
+  // response for "slow"
+  private static HttpServer startDocumentServer(
+      byte[] document, List<Headers> requests, List<Integer> clientPorts) throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/docs/",
+        exchange -> {
+          requests.add(exchange.getRequestHeaders());
+          clientPorts.add(exchange.getRemoteAddress().getPort());
+          String path = exchange.getRequestURI().getPath();
+          if (path.equals("/docs/slow/body")) {
+            try {
+              Thread.sleep(2000);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          byte[] body;
+          if (path.equals("/docs/big/body")) {
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+              exchange.sendResponseHeaders(304, -1);
+              exchange.close();
+              return;
+            }
+            body = document;
+          } else if (path.startsWith("/docs/small-")) {
+            body = Arrays.copyOf(document, 3000);
+          } else {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+          }
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  private ExecutionResult fetchDocument(HttpServer server, String documentId, Properties props)
+      throws Exception {
+    msgCtxt.setVariable(
+        "message.header.attachmenturl",
+        "http://127.0.0.1:" + server.getAddress().getPort() + "/docs/");
+    msgCtxt.setVariable("message.header.documentid", documentId);
+    msgCtxt.setVariable("message.header.apikey", "key-1234");
+    props.put("action", "get_base64str");
+    XopHandler callout = new XopHandler(props);
+    return callout.execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void withGetBase64Action() throws Exception {
+    byte[] document = new byte[3 * 1024 * 1024 + 1];
+    new Random(7).nextBytes(document);
+    List<Headers> requests = new CopyOnWriteArrayList<Headers>();
+    List<Integer> clientPorts = new CopyOnWriteArrayList<Integer>();
+    HttpServer server = startDocumentServer(document, requests, clientPorts);
+    try {
+      for (int i = 0; i < 2; i++) {
+        ExecutionResult actualResult = fetchDocument(server, "big", new Properties());
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+        Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+        String base64Encoded = msgCtxt.getVariable("xop_base64Encoded");
+        Assert.assertEquals(base64Encoded, Base64.getEncoder().encodeToString(document));
+      }
+      Assert.assertEquals(
+          msgCtxt.getVariable("xop_USEDURLJAVA"),
+          "http://127.0.0.1:" + server.getAddress().getPort() + "/docs/big/body");
+      Assert.assertEquals(requests.size(), 2);
+      for (Headers request : requests) {
+        Assert.assertEquals(request.getFirst("x-api-key"), "key-1234");
+      }
+      // the second request went out on the connection the first one used
+      Assert.assertEquals(clientPorts.size(), 2);
+      Assert.assertEquals(clientPorts.get(1), clientPorts.get(0), "connection reused");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionNotFound() throws Exception {
+    HttpServer server =
+        startDocumentServer(
+            new byte[0], new CopyOnWriteArrayList<Headers>(), new CopyOnWriteArrayList<Integer>());
+    try {
+      ExecutionResult actualResult = fetchDocument(server, "missing", new Properties());
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      String error = msgCtxt.getVariable("xop_error");
+      Assert.assertNotNull(error, "error");
+      Assert.assertTrue(error.contains("status 404"), error);
+      Assert.assertNull(msgCtxt.getVariable("xop_base64Encoded"), "base64Encoded");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionReadTimeout() throws Exception {
+    HttpServer server =
+        startDocumentServer(
+            new byte[0], new CopyOnWriteArrayList<Headers>(), new CopyOnWriteArrayList<Integer>());
+    try {
+      Properties props = new Properties();
+      props.put("read-timeout", "300");
+      long start = System.currentTimeMillis();
+      ExecutionResult actualResult = fetchDocument(server, "slow", props);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      Assert.assertTrue(System.currentTimeMillis() - start < 1800, "gave up early");
+      String error = msgCtxt.getVariable("xop_error");
+      Assert.assertNotNull(error, "error");
+      Assert.assertTrue(error.toLowerCase().contains("timed out"), error);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCached() throws Exception {
+    byte[] document = new byte[100000];
+    new Random(11).nextBytes(document);
+    List<Headers> requests = new CopyOnWriteArrayList<Headers>();
+    HttpServer server =
+        startDocumentServer(document, requests, new CopyOnWriteArrayList<Integer>());
+    try {
+      String expected = Base64.getEncoder().encodeToString(document);
+      String[] statuses = {"miss", "hit", "hit"};
+      for (int i = 0; i < statuses.length; i++) {
+        Properties props = new Properties();
+        props.put("cache-max-bytes", "1000000");
+        ExecutionResult actualResult = fetchDocument(server, "big", props);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+        Assert.assertEquals(msgCtxt.getVariable("xop_base64Encoded"), expected);
+        Assert.assertEquals(msgCtxt.getVariable("xop_cache_status"), statuses[i]);
+      }
+      Assert.assertEquals(requests.size(), 1, "requests");
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_hits"), "2");
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_misses"), "1");
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_evictions"), "0");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCacheRevalidated() throws Exception {
+    byte[] document = new byte[100000];
+    new Random(13).nextBytes(document);
+    List<Headers> requests = new CopyOnWriteArrayList<Headers>();
+    HttpServer server =
+        startDocumentServer(document, requests, new CopyOnWriteArrayList<Integer>());
+    try {
+      String[] statuses = {"miss", "revalidated"};
+      for (int i = 0; i < statuses.length; i++) {
+        if (i > 0) {
+          Thread.sleep(1100);
+        }
+        Properties props = new Properties();
+        props.put("cache-max-bytes", "1000001");
+        props.put("cache-ttl", "1");
+        props.put("cache-revalidate", "true");
+        ExecutionResult actualResult = fetchDocument(server, "big", props);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+        Assert.assertEquals(
+            msgCtxt.getVariable("xop_base64Encoded"),
+            Base64.getEncoder().encodeToString(document));
+        Assert.assertEquals(msgCtxt.getVariable("xop_cache_status"), statuses[i]);
+      }
+      Assert.assertEquals(requests.size(), 2, "requests");
+      Assert.assertNull(requests.get(0).getFirst("If-None-Match"));
+      Assert.assertEquals(requests.get(1).getFirst("If-None-Match"), "\"v1\"");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCacheKeyedByApiKey() throws Exception {
+    byte[] document = new byte[1000];
+    new Random(29).nextBytes(document);
+    List<Headers> requests = new CopyOnWriteArrayList<Headers>();
+    HttpServer server =
+        startDocumentServer(document, requests, new CopyOnWriteArrayList<Integer>());
+    try {
+      Properties props = new Properties();
+      props.put("cache-max-bytes", "1000002");
+      ExecutionResult actualResult = fetchDocument(server, "small-1", props);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_status"), "miss");
+
+      // another key does not get the document from the cache
+      msgCtxt.setVariable("message.header.apikey", "key-5678");
+      props = new Properties();
+      props.put("action", "get_base64str");
+      props.put("cache-max-bytes", "1000002");
+      actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_status"), "miss");
+      Assert.assertEquals(requests.size(), 2, "requests");
+      Assert.assertEquals(requests.get(1).getFirst("x-api-key"), "key-5678");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCacheEvicts() throws Exception {
+    byte[] document = new byte[3000];
+    new Random(17).nextBytes(document);
+    HttpServer server =
+        startDocumentServer(
+            document, new CopyOnWriteArrayList<Headers>(), new CopyOnWriteArrayList<Integer>());
+    try {
+      // each entry is 4000 characters of base64 and its key, at two bytes a
+      // character, so only one fits
+      String[] documentIds = {"small-1", "small-2", "small-1"};
+      String[] statuses = {"miss", "miss", "miss"};
+      for (int i = 0; i < documentIds.length; i++) {
+        Properties props = new Properties();
+        props.put("cache-max-bytes", "12000");
+        ExecutionResult actualResult = fetchDocument(server, documentIds[i], props);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+        Assert.assertEquals(msgCtxt.getVariable("xop_cache_status"), statuses[i]);
+      }
+      Assert.assertEquals(msgCtxt.getVariable("xop_cache_evictions"), "2");
+      long bytes = Long.parseLong(msgCtxt.getVariable("xop_cache_bytes"));
+      Assert.assertTrue(bytes > 8000 && bytes <= 12000, "cache bytes " + bytes);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  // serves /docs/latched/body, the document, and /docs/latched-missing/body,
+  // a 404, each only once the release latch opens
+  private static HttpServer startLatchedServer(
+      byte[] document, CountDownLatch arrived, CountDownLatch release, AtomicInteger requests)
+      throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/docs/",
+        exchange -> {
+          requests.incrementAndGet();
+          arrived.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (!exchange.getRequestURI().getPath().equals("/docs/latched/body")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+          }
+          exchange.sendResponseHeaders(200, document.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(document);
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  // runs get_base64str on a thread of its own, with a message context of its own
+  private static class FetchThread extends Thread {
+    private final Map<String, Object> variables = new ConcurrentHashMap<String, Object>();
+    private final MessageContext context;
+    private final XopHandler callout;
+    private volatile ExecutionResult result;
+
+    FetchThread(HttpServer server, String documentId, Properties props) {
+      variables.put(
+          "message.header.attachmenturl",
+          "http://127.0.0.1:" + server.getAddress().getPort() + "/docs/");
+      variables.put("message.header.documentid", documentId);
+      variables.put("message.header.apikey", "key-1234");
+      Message request =
+          new MockUp<Message>() {
+            @Mock()
+            public String getHeader(String name) {
+              return (String) variables.get("message.header." + name.toLowerCase());
+            }
+          }.getMockInstance();
+      variables.put("message", request);
+      context =
+          new MockUp<MessageContext>() {
+            @Mock()
+            public <T> T getVariable(final String name) {
+              return (T) variables.get(name);
+            }
+
+            @Mock()
+            public boolean setVariable(final String name, final Object value) {
+              variables.put(name, value);
+              return true;
+            }
+
+            @Mock()
+            public boolean removeVariable(final String name) {
+              variables.remove(name);
+              return true;
+            }
+
+            @Mock()
+            public Message getMessage() {
+              return request;
+            }
+          }.getMockInstance();
+      props.put("action", "get_base64str");
+      callout = new XopHandler(props);
+    }
+
+    @Override
+    public void run() {
+      result = callout.execute(context, null);
+    }
+
+    // wait until the fetch is parked, waiting for the one in flight
+    void awaitWaiting() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (getState() != Thread.State.TIMED_WAITING) {
+        Assert.assertTrue(System.currentTimeMillis() < deadline, "waiting for the fetch in flight");
+        Thread.sleep(5);
+      }
+    }
+  }
+
+  private static List<FetchThread> startSharedFetches(
+      HttpServer server, String documentId, CountDownLatch arrived, int count) throws Exception {
+    List<FetchThread> fetches = new ArrayList<FetchThread>();
+    for (int i = 0; i < count; i++) {
+      fetches.add(new FetchThread(server, documentId, new Properties()));
+    }
+    // the first one goes to the server, and the others join it
+    fetches.get(0).start();
+    Assert.assertTrue(arrived.await(10, TimeUnit.SECONDS), "first request arrived");
+    for (int i = 1; i < count; i++) {
+      fetches.get(i).start();
+      fetches.get(i).awaitWaiting();
+    }
+    return fetches;
+  }
+
+  @Test
+  public void withGetBase64ActionCoalesced() throws Exception {
+    byte[] document = new byte[200000];
+    new Random(19).nextBytes(document);
+    CountDownLatch arrived = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startLatchedServer(document, arrived, release, requests);
+    try {
+      List<FetchThread> fetches = startSharedFetches(server, "latched", arrived, 4);
+      release.countDown();
+      String expected = Base64.getEncoder().encodeToString(document);
+      for (FetchThread fetch : fetches) {
+        fetch.join(10000);
+        Assert.assertEquals(fetch.result, ExecutionResult.SUCCESS, "ExecutionResult");
+        Assert.assertEquals(fetch.variables.get("xop_base64Encoded"), expected);
+      }
+      Assert.assertEquals(requests.get(), 1, "requests");
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCoalescedFailure() throws Exception {
+    CountDownLatch arrived = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startLatchedServer(new byte[0], arrived, release, requests);
+    try {
+      List<FetchThread> fetches = startSharedFetches(server, "latched-missing", arrived, 3);
+      release.countDown();
+      for (FetchThread fetch : fetches) {
+        fetch.join(10000);
+        Assert.assertEquals(fetch.result, ExecutionResult.ABORT, "ExecutionResult");
+        String error = (String) fetch.variables.get("xop_error");
+        Assert.assertNotNull(error, "error");
+        Assert.assertTrue(error.contains("status 404"), error);
+      }
+      Assert.assertEquals(requests.get(), 1, "requests");
+
+      // a failure is not kept: the next request tries again
+      FetchThread again = new FetchThread(server, "latched-missing", new Properties());
+      again.start();
+      again.join(10000);
+      Assert.assertEquals(again.result, ExecutionResult.ABORT, "ExecutionResult");
+      Assert.assertEquals(requests.get(), 2, "requests");
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionCoalesceTimeout() throws Exception {
+    byte[] document = new byte[1000];
+    new Random(23).nextBytes(document);
+    CountDownLatch arrived = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startLatchedServer(document, arrived, release, requests);
+    try {
+      FetchThread first = new FetchThread(server, "latched", new Properties());
+      first.start();
+      Assert.assertTrue(arrived.await(10, TimeUnit.SECONDS), "first request arrived");
+
+      Properties props = new Properties();
+      props.put("coalesce-timeout", "200");
+      FetchThread second = new FetchThread(server, "latched", props);
+      second.start();
+      second.join(10000);
+      Assert.assertEquals(second.result, ExecutionResult.ABORT, "ExecutionResult");
+      Assert.assertEquals(
+          second.variables.get("xop_error"),
+          "timed out after 200 ms waiting for the same request in flight");
+
+      release.countDown();
+      first.join(10000);
+      Assert.assertEquals(first.result, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertEquals(requests.get(), 1, "requests");
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+
+  // serves /docs/{id}/body as "doc-{id}", only once as many requests as the
+  // arrived latch counts are in flight at the same time; "missing" is a 404,
+  // and "held-*" waits for the release latch too
+  private static HttpServer startListServer(CountDownLatch arrived, CountDownLatch release)
+      throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/docs/",
+        exchange -> {
+          String id = exchange.getRequestURI().getPath().split("/")[2];
+          arrived.countDown();
+          try {
+            arrived.await(10, TimeUnit.SECONDS);
+            if (id.startsWith("held-")) {
+              release.await(10, TimeUnit.SECONDS);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (id.equals("missing")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+          }
+          byte[] body = ("doc-" + id).getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  private static String decodeVariable(MessageContext msgCtxt, String name) {
+    String value = msgCtxt.getVariable(name);
+    return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void withGetBase64ActionList() throws Exception {
+    // no response is sent until all three requests are in flight
+    CountDownLatch arrived = new CountDownLatch(3);
+    HttpServer server = startListServer(arrived, new CountDownLatch(0));
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/docs/";
+      ExecutionResult actualResult = fetchDocument(server, "a, b ,c", new Properties());
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+      Assert.assertEquals(msgCtxt.getVariable("xop_document_count"), "3");
+      String[] ids = {"a", "b", "c"};
+      for (int i = 0; i < ids.length; i++) {
+        String n = Integer.toString(i + 1);
+        Assert.assertEquals(decodeVariable(msgCtxt, "xop_base64Encoded." + n), "doc-" + ids[i]);
+        Assert.assertEquals(msgCtxt.getVariable("xop_USEDURLJAVA." + n), base + ids[i] + "/body");
+      }
+      Assert.assertEquals(decodeVariable(msgCtxt, "xop_base64Encoded"), "doc-a");
+      Assert.assertEquals(msgCtxt.getVariable("xop_USEDURLJAVA"), base + "a/body");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionListFailure() throws Exception {
+    HttpServer server = startListServer(new CountDownLatch(2), new CountDownLatch(0));
+    try {
+      ExecutionResult actualResult = fetchDocument(server, "a,missing", new Properties());
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      String error = msgCtxt.getVariable("xop_error");
+      Assert.assertNotNull(error, "error");
+      Assert.assertTrue(error.contains("missing/body returned status 404"), error);
+      Assert.assertNull(msgCtxt.getVariable("xop_base64Encoded.1"), "base64Encoded.1");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionListDeadline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = startListServer(new CountDownLatch(2), release);
+    try {
+      Properties props = new Properties();
+      props.put("fetch-deadline", "300");
+      ExecutionResult actualResult = fetchDocument(server, "a,held-1", props);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      Assert.assertEquals(
+          msgCtxt.getVariable("xop_error"), "timed out after 300 ms fetching 2 documents");
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+
+  // whether a pool thread is still inside a fetch
+  private static boolean fetchRunning() {
+    for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+      if (thread.getKey().getName().startsWith("xop-fetch-")) {
+        for (StackTraceElement frame : thread.getValue()) {
+          if (frame.getClassName().equals("com.google.apigee.HttpFetcher")) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void assertFetchesEnd() throws Exception {
+    long giveUp = System.currentTimeMillis() + 2000;
+    while (fetchRunning() && System.currentTimeMillis() < giveUp) {
+      Thread.sleep(20);
+    }
+    Assert.assertFalse(fetchRunning(), "fetch still running");
+  }
+
+  @Test
+  public void withGetBase64ActionListDeadlineFreesThreads() throws Exception {
+    // the backend never answers in time; the fetch must not hold its thread
+    // beyond the deadline waiting for it
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = startListServer(new CountDownLatch(2), release);
+    try {
+      Properties props = new Properties();
+      props.put("fetch-deadline", "300");
+      props.put("read-timeout", "20000");
+      ExecutionResult actualResult = fetchDocument(server, "held-1,held-2", props);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      assertFetchesEnd();
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+
+    // nor, once one document of the list has failed, until the deadline
+    release = new CountDownLatch(1);
+    server = startListServer(new CountDownLatch(3), release);
+    try {
+      Properties props = new Properties();
+      props.put("fetch-deadline", "20000");
+      props.put("read-timeout", "20000");
+      ExecutionResult actualResult = fetchDocument(server, "missing,held-1,held-2", props);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+      String error = msgCtxt.getVariable("xop_error");
+      Assert.assertTrue(error.contains("missing/body returned status 404"), error);
+      assertFetchesEnd();
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withGetBase64ActionBadTimeout() throws Exception {
+    Properties props = new Properties();
+    props.put("action", "get_base64str");
+    props.put("connect-timeout", "soon");
+    msgCtxt.setVariable("message.header.attachmenturl", "http://127.0.0.1:9/docs/");
+    msgCtxt.setVariable("message.header.documentid", "big");
+    XopHandler callout = new XopHandler(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_error"),
+        "configuration error: connect-timeout is not a number (soon)");
+  }
+
   private static final String msg4 =
           ""
                   + "%PDF-1.5 %���� 3 0 obj <\n" +
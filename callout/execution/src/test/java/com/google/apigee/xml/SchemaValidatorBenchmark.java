@@ -0,0 +1,106 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+/**
+ * Measures what schema validation adds to a streaming filter: validation fused into the
+ * filter's pass, against a second pass over the output with a new Validator, which is what a
+ * separate validation policy after the callout costs.
+ * Run with: java -cp target/classes:target/test-classes com.google.apigee.xml.SchemaValidatorBenchmark
+ * Needs a HotSpot JVM for the per-thread allocation counter.
+ */
+public class SchemaValidatorBenchmark {
+  private static final int CALLS = 20000;
+  private static final int ROUNDS = 5;
+  private static final String NS = "urn:example";
+
+  private static final String SCHEMA =
+      "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:example'"
+          + " elementFormDefault='qualified'>"
+          + "<xs:element name='order'><xs:complexType><xs:sequence>"
+          + "<xs:element name='auth'><xs:complexType><xs:sequence>"
+          + "<xs:element name='token' type='xs:string' minOccurs='0'/>"
+          + "</xs:sequence></xs:complexType></xs:element>"
+          + "<xs:element name='id' type='xs:int'/>"
+          + "<xs:element name='line' maxOccurs='unbounded'><xs:complexType><xs:simpleContent>"
+          + "<xs:extension base='xs:string'>"
+          + "<xs:attribute name='sku' type='xs:string' use='required'/>"
+          + "<xs:attribute name='qty' type='xs:positiveInteger' use='required'/>"
+          + "</xs:extension></xs:simpleContent></xs:complexType></xs:element>"
+          + "</xs:sequence></xs:complexType></xs:element>"
+          + "</xs:schema>";
+
+  public static void main(String[] args) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<o:order xmlns:o='urn:example'><o:auth><o:token>secret</o:token></o:auth>");
+    sb.append("<o:id>1234</o:id>");
+    for (int i = 0; i < 20; i++) {
+      sb.append("<o:line sku='A").append(i).append("' qty='2'>widget</o:line>");
+    }
+    sb.append("</o:order>");
+    byte[] document = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+    Schema schema =
+        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(new StreamSource(new StringReader(SCHEMA)));
+    SchemaValidator validator = new SchemaValidator(schema, "benchmark");
+    ElementFilter filter =
+        new ElementFilter(
+            new QName(NS, "order"), new QName(NS, "auth"), new QName(NS, "token"));
+
+    String[] modes = {"filter", "fused", "separate"};
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    for (int mode = 0; mode < modes.length; mode++) {
+      long allocated = 0;
+      long elapsed = 0;
+      for (int round = 0; round < ROUNDS; round++) {
+        long bytesBefore = bean.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+          out.reset();
+          if (mode == 1) {
+            filter.copy(new ByteArrayInputStream(document), out, validator.newCheck());
+          } else {
+            filter.copy(new ByteArrayInputStream(document), out);
+          }
+          if (mode == 2) {
+            schema
+                .newValidator()
+                .validate(new StreamSource(new ByteArrayInputStream(out.toByteArray())));
+          }
+        }
+        elapsed = System.nanoTime() - start;
+        allocated = bean.getThreadAllocatedBytes(tid) - bytesBefore;
+      }
+      System.out.printf(
+          "%-8s %8d bytes allocated per call, %6d ns per call%n",
+          modes[mode], allocated / CALLS, elapsed / CALLS);
+    }
+  }
+}
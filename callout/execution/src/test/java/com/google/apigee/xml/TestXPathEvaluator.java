@@ -0,0 +1,167 @@
+// Copyright 2018-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.xml;
+
+import javax.xml.xpath.XPathConstants;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.NodeList;
+
+public class TestXPathEvaluator {
+  private static final String GENERIC_REQUEST =
+      "<Envelope xmlns='urn:generic'><Body>"
+          + "<GenericRequest id='r1'><Item>one</Item><Item>two</Item></GenericRequest>"
+          + "</Body></Envelope>";
+  private static final String TWO_NAMESPACES =
+      "<root xmlns:a='urn:a' xmlns:b='urn:b'><a:item/><b:item/><b:item/></root>";
+
+  @Test
+  public void qualifyElementNames() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("//GenericRequest", "d"), "//d:GenericRequest");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a/b", "d"), "/d:a/d:b");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a/.//b", "d"), "/d:a/.//d:b");
+  }
+
+  @Test
+  public void qualifyOperatorNamesAsElements() {
+    // at the start of a step, and or div is an element name
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/and/div", "d"), "/d:and/d:div");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/or/mod", "d"), "/d:or/d:mod");
+  }
+
+  @Test
+  public void qualifyLeavesOperators() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b and c]", "d"), "/d:a[d:b and d:c]");
+    Assert.assertEquals(
+        XPathEvaluator.qualifyNames("/a[b mod 3 = 0 or c]", "d"), "/d:a[d:b mod 3 = 0 or d:c]");
+    Assert.assertEquals(
+        XPathEvaluator.qualifyNames("count(//a) div 2", "d"), "count(//d:a) div 2");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b div 2 > 1]", "d"), "/d:a[d:b div 2 > 1]");
+  }
+
+  @Test
+  public void qualifyLeavesAxesAndAttributes() {
+    Assert.assertEquals(
+        XPathEvaluator.qualifyNames("child::a/attribute::id", "d"), "child::d:a/attribute::id");
+    Assert.assertEquals(
+        XPathEvaluator.qualifyNames("ancestor-or-self::a", "d"), "ancestor-or-self::d:a");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a/@b", "d"), "/d:a/@b");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("//a[@x][b]", "d"), "//d:a[@x][d:b]");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a/@p:id", "d"), "/d:a/@p:id");
+  }
+
+  @Test
+  public void qualifyLeavesFunctionsAndNodeTests() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("//a/text()", "d"), "//d:a/text()");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[last()]", "d"), "/d:a[last()]");
+    Assert.assertEquals(
+        XPathEvaluator.qualifyNames("/a[position() = 2]", "d"), "/d:a[position() = 2]");
+  }
+
+  @Test
+  public void qualifyLeavesLiteralsNumbersAndVariables() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[.='b c']", "d"), "/d:a[.='b c']");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[\"x y\"=b]", "d"), "/d:a[\"x y\"=d:b]");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[3]", "d"), "/d:a[3]");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b > 1.5]", "d"), "/d:a[d:b > 1.5]");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b = $var]", "d"), "/d:a[d:b = $var]");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b = $p:v]", "d"), "/d:a[d:b = $p:v]");
+  }
+
+  @Test
+  public void qualifyWildcards() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/*/a", "d"), "/*/d:a");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a/*", "d"), "/d:a/*");
+    // a multiplication, not a wildcard
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a[b * 2]", "d"), "/d:a[d:b * 2]");
+  }
+
+  @Test
+  public void qualifyLeavesPrefixedNames() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/p:a/b", "d"), "/p:a/d:b");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/p:*/b", "d"), "/p:*/d:b");
+  }
+
+  @Test
+  public void qualifyUnions() {
+    Assert.assertEquals(XPathEvaluator.qualifyNames("/a | /b", "d"), "/d:a | /d:b");
+    Assert.assertEquals(XPathEvaluator.qualifyNames("//a|//b", "d"), "//d:a|//d:b");
+  }
+
+  @Test
+  public void matchAnyNamespace() {
+    Assert.assertEquals(
+        XPathEvaluator.matchAnyNamespace("//GenericRequest"),
+        "//*[local-name()='GenericRequest']");
+    Assert.assertEquals(
+        XPathEvaluator.matchAnyNamespace("/a/b[@id='x']"),
+        "/*[local-name()='a']/*[local-name()='b'][@id='x']");
+    Assert.assertEquals(
+        XPathEvaluator.matchAnyNamespace("/a[b and c]"),
+        "/*[local-name()='a'][*[local-name()='b'] and *[local-name()='c']]");
+    Assert.assertEquals(
+        XPathEvaluator.matchAnyNamespace("child::a/attribute::id"),
+        "child::*[local-name()='a']/attribute::id");
+    Assert.assertEquals(
+        XPathEvaluator.matchAnyNamespace("/p:a/b | //c/text()"),
+        "/p:a/*[local-name()='b'] | //*[local-name()='c']/text()");
+  }
+
+  @Test
+  public void unprefixedNameInDefaultNamespace() throws Exception {
+    XPathEvaluator evaluator = new XPathEvaluator();
+    NodeList nodes =
+        (NodeList) evaluator.evaluate("//GenericRequest", GENERIC_REQUEST, XPathConstants.NODESET);
+    Assert.assertEquals(nodes.getLength(), 1);
+    Assert.assertEquals(nodes.item(0).getNamespaceURI(), "urn:generic");
+    Assert.assertEquals(
+        evaluator.evaluate("string(//GenericRequest/@id)", GENERIC_REQUEST, XPathConstants.STRING),
+        "r1");
+  }
+
+  private static double count(XPathEvaluator evaluator, String xpath) throws Exception {
+    return (Double)
+        evaluator.evaluate("count(" + xpath + ")", TWO_NAMESPACES, XPathConstants.NUMBER);
+  }
+
+  @Test
+  public void registerNamespaceAfterCompiling() throws Exception {
+    XPathEvaluator evaluator = new XPathEvaluator();
+    evaluator.registerNamespace("p", "urn:a");
+    Assert.assertEquals(count(evaluator, "//p:item"), 1.0);
+    // the expression compiled with p bound to urn:a must not be reused
+    evaluator.registerNamespace("p", "urn:b");
+    Assert.assertEquals(count(evaluator, "//p:item"), 2.0);
+    evaluator.registerNamespace("q", "urn:a");
+    Assert.assertEquals(count(evaluator, "//p:item | //q:item"), 3.0);
+  }
+
+  @Test
+  public void evaluatorsWithOtherBindings() throws Exception {
+    XPathEvaluator first = new XPathEvaluator();
+    first.registerNamespace("p", "urn:a");
+    XPathEvaluator second = new XPathEvaluator();
+    second.registerNamespace("p", "urn:b");
+    XPathEvaluator same = new XPathEvaluator();
+    same.registerNamespace("p", "urn:a");
+    // on one thread, so each would find the others' expressions if the cache ignored bindings
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(count(first, "//p:item"), 1.0);
+      Assert.assertEquals(count(second, "//p:item"), 2.0);
+      Assert.assertEquals(count(same, "//p:item"), 1.0);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * The "--boundary" delimiter pattern and its search tables.
+ * <p>
+ * The pattern is located with a Boyer-Moore-Horspool skip table. Horspool
+ * alone is quadratic on some inputs; the verification work is therefore
+ * metered and, once it exceeds a small multiple of the bytes scanned, the
+ * rest of the window is searched with Knuth-Morris-Pratt, which keeps the
+ * search linear on adversarial data.
+ * <p>
+ * A match only counts as a delimiter if it is at the very start of a part
+ * or preceded by CRLF, CR or LF. The newline belongs to the delimiter.
+ */
+final class BoundaryPattern {
+
+	/** Horspool verification budget, per byte of the searched window. */
+	private static final int WORK_FACTOR = 2;
+
+	private final byte[] pattern;
+	private final int[] skip = new int[256];
+	private final int[] failure;
+
+	BoundaryPattern(String boundary) {
+		this.pattern = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		int m = pattern.length;
+		for (int i = 0; i < skip.length; i++) {
+			skip[i] = m;
+		}
+		for (int i = 0; i < m - 1; i++) {
+			skip[pattern[i] & 0xff] = m - 1 - i;
+		}
+		this.failure = new int[m];
+		for (int i = 1, k = 0; i < m; i++) {
+			while (k > 0 && pattern[i] != pattern[k]) {
+				k = failure[k - 1];
+			}
+			if (pattern[i] == pattern[k]) {
+				k++;
+			}
+			failure[i] = k;
+		}
+	}
+
+	/**
+	 * Get the length of the pattern, "--" plus the boundary.
+	 * @return the pattern length.
+	 */
+	int length() {
+		return pattern.length;
+	}
+
+	/**
+	 * Compare the pattern with the bytes at p.
+	 * @param buf the bytes to compare, accessed with absolute indices.
+	 * @param p the index to compare at.
+	 * @param limit the end of the valid bytes in buf.
+	 * @return the number of leading pattern bytes that match; equal to
+	 * {@link #length()} for a full match, and less than that either at
+	 * a mismatch or when limit was reached first.
+	 */
+	int matchLength(ByteBuffer buf, int p, int limit) {
+		int n = Math.min(pattern.length, limit - p);
+		int i = 0;
+		while (i < n && buf.get(p + i) == pattern[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Find the first delimiter pattern at an alignment in [from, limit - length()].
+	 * @param buf the bytes to search, accessed with absolute indices.
+	 * @param from the first alignment to check.
+	 * @param limit the end of the valid bytes in buf.
+	 * @param partStart the index where the current part starts, may be negative.
+	 * @return the index of the pattern, or -1 if there is none.
+	 */
+	int search(ByteBuffer buf, int from, int limit, int partStart) {
+		final int m = pattern.length;
+		final int last = m - 1;
+		final int end = limit - m;
+		final byte lastByte = pattern[last];
+		int budget = WORK_FACTOR * (limit - from) + m;
+		int i = from;
+		while (i <= end) {
+			byte c = buf.get(i + last);
+			if (c == lastByte) {
+				int j = last - 1;
+				while (j >= 0 && buf.get(i + j) == pattern[j]) {
+					j--;
+				}
+				budget -= last - j;
+				if (j < 0 && isDelimiter(buf, i, partStart)) {
+					return i;
+				}
+				if (budget < 0) {
+					return searchLinear(buf, i + 1, limit, partStart);
+				}
+			}
+			i += skip[c & 0xff];
+		}
+		return -1;
+	}
+
+	private int searchLinear(ByteBuffer buf, int from, int limit, int partStart) {
+		final int m = pattern.length;
+		int k = 0;
+		for (int t = from; t < limit; t++) {
+			byte c = buf.get(t);
+			while (k > 0 && c != pattern[k]) {
+				k = failure[k - 1];
+			}
+			if (c == pattern[k]) {
+				k++;
+			}
+			if (k == m) {
+				if (isDelimiter(buf, t - m + 1, partStart)) {
+					return t - m + 1;
+				}
+				k = failure[k - 1];
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isDelimiter(ByteBuffer buf, int p, int partStart) {
+		if (p == partStart) {
+			return true;
+		}
+		if (p - 1 < Math.max(partStart, 0)) {
+			return false;
+		}
+		byte c = buf.get(p - 1);
+		return c == '\r' || c == '\n';
+	}
+
+	/**
+	 * Check for a delimiter that starts exactly at p, such as at the end of
+	 * a part body whose length is known.
+	 * @param buf the bytes to check, accessed with absolute indices.
+	 * @param p the index where the delimiter, including its newline, should start.
+	 * @param limit the end of the valid bytes in buf.
+	 * @param partStart the index where the current part starts, may be negative.
+	 * @return the index of the pattern, or -1 if there is no delimiter at p.
+	 */
+	int delimiterAt(ByteBuffer buf, int p, int limit, int partStart) {
+		int q = p;
+		if (q < limit && buf.get(q) == '\r') {
+			q++;
+		}
+		if (q < limit && buf.get(q) == '\n') {
+			q++;
+		}
+		if (matchLength(buf, q, limit) != pattern.length) {
+			return -1;
+		}
+		return q > p || isDelimiter(buf, q, partStart) ? q : -1;
+	}
+
+	/**
+	 * Get the start of the delimiter whose pattern was found at p,
+	 * including the newline before it.
+	 * @param buf the searched bytes.
+	 * @param p the index returned by {@link #search}.
+	 * @param partStart the index where the current part starts.
+	 * @return the index of the first byte of the delimiter.
+	 */
+	static int delimiterStart(ByteBuffer buf, int p, int partStart) {
+		if (p == partStart) {
+			return p;
+		}
+		if (buf.get(p - 1) == '\n' && p - 2 >= partStart && buf.get(p - 2) == '\r') {
+			return p - 2;
+		}
+		return p - 1;
+	}
+}
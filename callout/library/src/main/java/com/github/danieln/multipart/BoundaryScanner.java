@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Buffered scanner that splits a multipart stream at its delimiters.
+ * <p>
+ * The scanner owns the read buffer for the whole message and is shared by
+ * the {@link PartInputStream}s of consecutive parts. Delimiters are located
+ * with the skip table of a {@link BoundaryPattern}, so the bulk of a part
+ * body is handed out with array copies instead of being examined byte by
+ * byte.
+ * <p>
+ * Everything after the pattern up to and including the end of the line is
+ * consumed as part of the delimiter, and a trailing "--" marks the last part.
+ * <p>
+ * When the length of a part body is known from its Content-Length header,
+ * the body is handed out without searching it and the delimiter is only
+ * checked for where the body ends. If the whole body is buffered when the
+ * check fails, the scanner quietly falls back to searching; once bytes have
+ * been handed out on trust a wrong length is an error.
+ */
+final class BoundaryScanner {
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final InputStream stream;
+	private final BoundaryPattern pattern;
+
+	private byte[] buf;
+	private ByteBuffer view;
+	private ByteBuffer peekView;
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	// state of the current part, indices are into buf
+	private int partStart;
+	private int dataEnd;
+	private int scanFrom;
+	private int delimiter = -1;
+	private int boundaryAt = -1;
+	private boolean endOfPart;
+	private boolean lastPart;
+	// body bytes after dataEnd that are taken on trust, -1 if the length isn't trusted
+	private long trustLeft = -1;
+	private boolean trustReleased;
+	private boolean trustContentLength = true;
+	// start of the last delimiter, kept until more part data is read
+	private int mark = -1;
+
+	BoundaryScanner(InputStream stream, String boundary) {
+		this(stream, boundary, DEFAULT_BUFFER_SIZE);
+	}
+
+	BoundaryScanner(InputStream stream, String boundary, int bufferSize) {
+		this.stream = stream;
+		this.pattern = new BoundaryPattern(boundary);
+		// Room for a full delimiter line lookahead even after compaction.
+		this.buf = new byte[Math.max(bufferSize, 4 * (pattern.length() + 4))];
+		this.view = ByteBuffer.wrap(buf);
+		this.peekView = view.asReadOnlyBuffer();
+		startPart();
+	}
+
+	/**
+	 * Begin a new part at the current position.
+	 */
+	void startPart() {
+		partStart = pos;
+		dataEnd = pos;
+		scanFrom = pos;
+		delimiter = -1;
+		boundaryAt = -1;
+		endOfPart = false;
+		lastPart = false;
+		trustLeft = -1;
+		trustReleased = false;
+	}
+
+	/**
+	 * Set whether {@link #trustLength(long)} is honoured.
+	 * @param trust false to always search part bodies for the delimiter.
+	 */
+	void setTrustContentLength(boolean trust) {
+		this.trustContentLength = trust;
+	}
+
+	/**
+	 * Declare the length of the part body starting at the current position.
+	 * Ignored if the delimiter has already been found or the length contradicts
+	 * data already known not to contain a delimiter.
+	 * @param length the body length from the Content-Length header.
+	 */
+	void trustLength(long length) {
+		if (!trustContentLength || length < 0 || endOfPart || delimiter >= 0) {
+			return;
+		}
+		long end = pos + length;
+		if (end < dataEnd) {
+			return;
+		}
+		trustLeft = end - dataEnd;
+		trustReleased = false;
+	}
+
+	boolean isEndOfPart() {
+		return endOfPart;
+	}
+
+	boolean isLastPart() {
+		return lastPart;
+	}
+
+	int available() {
+		return dataEnd - pos;
+	}
+
+	int read() throws IOException {
+		mark = -1;
+		if (ensureData() < 0) {
+			return -1;
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	/**
+	 * Like the single byte read of the original implementation, this fills
+	 * the whole request unless the end of the part is reached first.
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		mark = -1;
+		int total = 0;
+		while (total < len) {
+			int n = ensureData();
+			if (n < 0) {
+				return total == 0 ? -1 : total;
+			}
+			n = Math.min(n, len - total);
+			System.arraycopy(buf, pos, b, off + total, n);
+			pos += n;
+			total += n;
+		}
+		return total;
+	}
+
+	long skip(long count) throws IOException {
+		mark = -1;
+		long skipped = 0;
+		while (skipped < count) {
+			int n = ensureData();
+			if (n < 0) {
+				break;
+			}
+			n = (int) Math.min(n, count - skipped);
+			pos += n;
+			skipped += n;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Get the available part data without copying it.
+	 * @return a view of the bytes from pos to the end of the available part
+	 * data, empty at the end of the part. Only valid until the next call.
+	 */
+	ByteBuffer peekData() throws IOException {
+		// Leave the delimiter to the body reads so that mark stays put
+		int n = pos == dataEnd && delimiter >= 0 ? -1 : ensureData();
+		peekView.clear();
+		if (n < 0) {
+			peekView.limit(0);
+		} else {
+			peekView.limit(pos + n);
+			peekView.position(pos);
+		}
+		return peekView;
+	}
+
+	/**
+	 * Consume bytes returned by {@link #peekData()}.
+	 * @param n the number of bytes.
+	 */
+	void consume(int n) {
+		pos += n;
+	}
+
+	long transferTo(OutputStream out) throws IOException {
+		mark = -1;
+		long total = 0;
+		int n;
+		while ((n = ensureData()) >= 0) {
+			out.write(buf, pos, n);
+			pos += n;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Make sure that some part data is available at pos.
+	 * @return the number of part data bytes available, or -1 at the end of the part.
+	 */
+	private int ensureData() throws IOException {
+		while (true) {
+			if (pos < dataEnd) {
+				return dataEnd - pos;
+			}
+			if (endOfPart) {
+				return -1;
+			}
+			if (delimiter >= 0) {
+				consumeDelimiter();
+				return -1;
+			}
+			if (trustLeft >= 0) {
+				releaseTrusted();
+				continue;
+			}
+			int p = pattern.search(view, scanFrom, limit, partStart);
+			if (p >= 0) {
+				boundaryAt = p;
+				delimiter = BoundaryPattern.delimiterStart(view, p, partStart);
+				dataEnd = delimiter;
+				continue;
+			}
+			scanFrom = Math.max(scanFrom, limit - pattern.length() + 1);
+			if (eof) {
+				if (pos < limit) {
+					dataEnd = limit;
+					continue;
+				}
+				// End of file without boundary
+				endOfPart = true;
+				lastPart = true;
+				return -1;
+			}
+			// Hold back anything that could still turn out to be CRLF + pattern.
+			int safe = limit - pattern.length() - 1;
+			if (safe > pos) {
+				dataEnd = safe;
+				continue;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Hand out body bytes of a trusted length, or verify the delimiter at its
+	 * end once it is buffered.
+	 */
+	private void releaseTrusted() throws IOException {
+		int window = pattern.length() + 2;
+		long end = dataEnd + trustLeft;
+		if (end + window <= limit || (eof && end <= limit)) {
+			int p = pattern.delimiterAt(view, (int) end, limit, partStart);
+			trustLeft = -1;
+			if (p < 0 && eof && end == limit) {
+				// Unterminated last part that ends where it should
+				return;
+			}
+			if (p >= 0) {
+				boundaryAt = p;
+				delimiter = (int) end;
+				dataEnd = delimiter;
+				scanFrom = p;
+			} else if (trustReleased) {
+				throw new IOException("Part body doesn't end at its Content-Length");
+			}
+			// else search the buffered body as usual
+			return;
+		}
+		if (eof) {
+			if (trustReleased) {
+				throw new IOException("Part body is shorter than its Content-Length");
+			}
+			trustLeft = -1;
+			scanFrom = Math.max(scanFrom, dataEnd);
+			return;
+		}
+		if (limit > dataEnd && trustLeft > 0) {
+			int n = (int) Math.min(trustLeft, limit - dataEnd);
+			dataEnd += n;
+			trustLeft -= n;
+			scanFrom = dataEnd;
+			trustReleased = true;
+			return;
+		}
+		fill();
+	}
+
+	/**
+	 * Detach the rest of the input, starting at the last delimiter consumed.
+	 * Only part headers may have been consumed since. The scanner can't be
+	 * used afterwards.
+	 * @return the raw bytes from the delimiter to the end of the underlying stream.
+	 * @throws IOException if part data has been read after the delimiter.
+	 */
+	InputStream detach() throws IOException {
+		if (mark < 0) {
+			throw new IOException("Part body has been partly read");
+		}
+		InputStream buffered = new ByteArrayInputStream(buf, mark, limit - mark);
+		mark = -1;
+		pos = limit;
+		dataEnd = limit;
+		endOfPart = true;
+		lastPart = true;
+		return eof ? buffered : new SequenceInputStream(buffered, stream);
+	}
+
+	private void consumeDelimiter() throws IOException {
+		mark = delimiter;
+		pos = boundaryAt + pattern.length();
+		delimiter = -1;
+		boundaryAt = -1;
+		int c = next();
+		// Check for last part marker ("--")
+		if (c == '-') {
+			c = next();
+			if (c == '-') {
+				c = next();
+				lastPart = true;
+			}
+		}
+		// Skip to end of line
+		while (c >= 0 && c != '\r' && c != '\n') {
+			c = next();
+		}
+		// handle CRLF as well as just CR
+		if (c == '\r' && peek() == '\n') {
+			pos++;
+		}
+		// Now positioned just after the newline following the boundary,
+		// ready for the next part.
+		dataEnd = pos;
+		endOfPart = true;
+	}
+
+	private int next() throws IOException {
+		int c = peek();
+		if (c >= 0) {
+			pos++;
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		while (pos == limit) {
+			if (eof) {
+				return -1;
+			}
+			fill();
+		}
+		return buf[pos] & 0xff;
+	}
+
+	/**
+	 * Discard consumed bytes and read more from the underlying stream.
+	 */
+	private void fill() throws IOException {
+		int from = mark >= 0 ? Math.min(mark, pos) : pos;
+		if (from > 0) {
+			int keep = limit - from;
+			System.arraycopy(buf, from, buf, 0, keep);
+			int shift = from;
+			pos -= shift;
+			if (mark >= 0) {
+				mark -= shift;
+			}
+			limit = keep;
+			partStart -= shift;
+			dataEnd -= shift;
+			scanFrom = Math.max(scanFrom - shift, 0);
+			if (delimiter >= 0) {
+				delimiter -= shift;
+				boundaryAt -= shift;
+			}
+		}
+		if (limit == buf.length) {
+			byte[] bigger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, limit);
+			buf = bigger;
+			view = ByteBuffer.wrap(buf);
+			peekView = view.asReadOnlyBuffer();
+		}
+		int n = stream.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * InputStream over the remaining bytes of a ByteBuffer.
+ * Reading advances the position of the buffer.
+ */
+class ByteBufferInputStream extends InputStream implements PartSource {
+
+	private static final int TRANSFER_CHUNK = 8192;
+
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public ByteBuffer peek() {
+		return buffer;
+	}
+
+	@Override
+	public void consume(int n) {
+		buffer.position(buffer.position() + n);
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int k = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + k);
+		return k;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	/**
+	 * Write the remaining bytes to the given stream.
+	 * @param out the stream to write to.
+	 * @return the number of bytes transferred.
+	 * @throws IOException if a write error occurs.
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		int total = buffer.remaining();
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), total);
+			buffer.position(buffer.limit());
+			return total;
+		}
+		byte[] chunk = new byte[Math.min(TRANSFER_CHUNK, total)];
+		while (buffer.hasRemaining()) {
+			int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+		return total;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+/**
+ * Parse MIME multipart content that is already held in a ByteBuffer.
+ * <p>
+ * This is the in-memory counterpart of {@link MultipartInput}. The buffer
+ * can be a heap buffer, a direct buffer or a MappedByteBuffer of a spooled
+ * file. Parts are located without copying any data: every {@link PartInput}
+ * returned by {@link #nextPart()} is backed by a read-only slice of the
+ * buffer, available through {@link PartInput#getBody()}, and its input
+ * stream reads straight from that slice.
+ * <p>
+ * Unlike MultipartInput, earlier parts stay valid after the next one is
+ * retrieved, since they are only views of the buffer.
+ */
+public class MultipartBufferInput {
+
+	private static final int PREEMBLE_LIMIT = 2000;
+
+	private final ByteBuffer buffer;
+	private final String subtype;
+	private final Map<String, String> parameters;
+	private final BoundaryPattern pattern;
+
+	private int position;
+	private int partOffset = -1;
+	private boolean lastPart;
+
+	/**
+	 * Create a new MultipartBufferInput that parses the remaining bytes of the given buffer.
+	 * The position of the given buffer is not changed.
+	 * @param buffer the multipart content.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @throws IOException if the first part boundary can't be found.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartBufferInput(ByteBuffer buffer, String contentType) throws IOException {
+		this.buffer = buffer.slice().asReadOnlyBuffer();
+		this.subtype = MultipartInput.parseContentType(contentType);
+		this.parameters = MultipartInput.parseParams(contentType);
+		String b = getParameter(MultipartInput.KEY_BOUNDARY);
+		if (b == null || b.length() == 0) {
+			throw new IllegalArgumentException("No or empty boundary specified in the ContentType");
+		}
+		this.pattern = new BoundaryPattern(b);
+		int p = pattern.search(this.buffer, 0, this.buffer.limit(), 0);
+		if (p < 0 || BoundaryPattern.delimiterStart(this.buffer, p, 0) > PREEMBLE_LIMIT) {
+			throw new IOException("Can't find first part boundary");
+		}
+		skipDelimiterLine(p);
+	}
+
+	/**
+	 * Get the multipart subtype, eg. "mixed" or "x-mixed-replace".
+	 * @return the subtype.
+	 */
+	public String getSubtype() {
+		return subtype;
+	}
+
+	/**
+	 * Get the value of a content type parameter.
+	 * @param key the parameter name, eg. "boundary".
+	 * @return the parameter value.
+	 */
+	public String getParameter(String key) {
+		return parameters.get(key.toLowerCase());
+	}
+
+	/**
+	 * Get the offset within the buffer of the part last returned by {@link #nextPart()}.
+	 * @return the offset of the first header byte of the part, or -1 before the first part.
+	 */
+	int getPartOffset() {
+		return partOffset;
+	}
+
+	/**
+	 * Retrieve the next part in the buffer.
+	 * @return the next part, or null if there are no more parts.
+	 */
+	public PartInput nextPart() {
+		if (lastPart) {
+			return null;
+		}
+		int limit = buffer.limit();
+		int start = position;
+		partOffset = start;
+		ByteBuffer rest = buffer.duplicate();
+		rest.position(start);
+		PartInput part = new PartInput(rest.slice());
+		int bodyStart;
+		try {
+			bodyStart = start + part.getBodyOffset();
+		} catch (IOException e) {
+			// Leave the error to whoever reads the headers
+			bodyStart = -1;
+		}
+		int p = -1;
+		int end = -1;
+		if (bodyStart >= 0) {
+			// Trust the Content-Length if the delimiter is right where it says
+			int length = part.getContentLength();
+			if (length >= 0 && length <= limit - bodyStart
+					&& pattern.search(buffer, start, bodyStart, start) < 0) {
+				end = bodyStart + length;
+				p = pattern.delimiterAt(buffer, end, limit, start);
+			}
+		}
+		if (p < 0) {
+			p = pattern.search(buffer, start, limit, start);
+			end = p >= 0 ? BoundaryPattern.delimiterStart(buffer, p, start) : limit;
+		}
+		if (p >= 0) {
+			skipDelimiterLine(p);
+		} else {
+			// End of buffer without boundary
+			position = limit;
+			lastPart = true;
+		}
+		if (bodyStart < 0 || end < bodyStart) {
+			// The headers didn't end before the delimiter, parse the part again on its own
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(start);
+			slice.limit(end);
+			return new PartInput(slice.slice());
+		}
+		part.limitBody(end - bodyStart);
+		return part;
+	}
+
+	/**
+	 * Move past the delimiter whose pattern starts at p and the rest of its line.
+	 */
+	private void skipDelimiterLine(int p) {
+		int limit = buffer.limit();
+		int i = p + pattern.length();
+		// Check for last part marker ("--")
+		if (i < limit && buffer.get(i) == '-') {
+			i++;
+			if (i < limit && buffer.get(i) == '-') {
+				i++;
+				lastPart = true;
+			}
+		}
+		// Skip to end of line, handle CRLF as well as just CR or LF
+		while (i < limit && buffer.get(i) != '\r' && buffer.get(i) != '\n') {
+			i++;
+		}
+		if (i < limit && buffer.get(i) == '\r') {
+			i++;
+			if (i < limit && buffer.get(i) == '\n') {
+				i++;
+			}
+		} else if (i < limit) {
+			i++;
+		}
+		position = i;
+	}
+}
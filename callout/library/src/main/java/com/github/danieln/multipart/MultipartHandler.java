@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Receives the events of a {@link MultipartPushParser}.
+ * <p>
+ * For every part the parser calls {@link #partStart()}, then
+ * {@link #header(String, String)} once per header, then {@link #bodyChunk(ByteBuffer)}
+ * zero or more times, and finally {@link #partEnd()}. {@link #messageEnd()} is
+ * called once after the last part.
+ */
+public interface MultipartHandler {
+
+	/**
+	 * A new part begins.
+	 * @throws IOException to abort parsing.
+	 */
+	void partStart() throws IOException;
+
+	/**
+	 * A header of the current part. Folded lines have been joined.
+	 * @param name the header name, as it appears in the message.
+	 * @param value the header value, trimmed.
+	 * @throws IOException to abort parsing.
+	 */
+	void header(String name, String value) throws IOException;
+
+	/**
+	 * A chunk of the body of the current part.
+	 * The buffer is a read-only view of the parser's internal buffer and is
+	 * only valid until this method returns.
+	 * @param chunk the body bytes.
+	 * @throws IOException to abort parsing.
+	 */
+	void bodyChunk(ByteBuffer chunk) throws IOException;
+
+	/**
+	 * The current part is complete.
+	 * @throws IOException to abort parsing.
+	 */
+	void partEnd() throws IOException;
+
+	/**
+	 * The closing delimiter, or the end of input, has been reached.
+	 * @throws IOException to abort parsing.
+	 */
+	void messageEnd() throws IOException;
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Random access index over the parts of a multipart message held in a ByteBuffer.
+ * <p>
+ * The message is scanned once with a {@link MultipartBufferInput}, recording
+ * the offset, length and headers of every part. Parts can then be looked up by
+ * position, by Content-ID, or as the root part of a multipart/related message
+ * (RFC 2387), which is named by the "start" parameter of the content type and
+ * defaults to the first part. No part data is copied.
+ * <p>
+ * Content-IDs are matched in normalized form, so "&lt;id&gt;", "id" and the
+ * "cid:id" URL used by xop:Include all find the same part.
+ */
+public class MultipartIndex {
+
+	/**
+	 * Key for the "start" parameter of multipart/related.
+	 */
+	public static final String KEY_START = "start";
+
+	private final MultipartBufferInput input;
+	private final List<PartInput> parts = new ArrayList<PartInput>();
+	private final List<int[]> bodies = new ArrayList<int[]>();
+	private final Map<String, Integer> byContentId = new HashMap<String, Integer>();
+	private final int root;
+
+	/**
+	 * Index the remaining bytes of the given buffer.
+	 * The position of the given buffer is not changed.
+	 * @param buffer the multipart content.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @throws IOException if the message can't be parsed.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartIndex(ByteBuffer buffer, String contentType) throws IOException {
+		this.input = new MultipartBufferInput(buffer, contentType);
+		PartInput part;
+		while ((part = input.nextPart()) != null) {
+			int offset = input.getPartOffset() + part.getBodyOffset();
+			bodies.add(new int[] { offset, part.getBody().remaining() });
+			String cid = part.getHeaderField("content-id");
+			if (cid != null) {
+				String key = normalizeContentId(cid);
+				if (!byContentId.containsKey(key)) {
+					byContentId.put(key, Integer.valueOf(parts.size()));
+				}
+			}
+			parts.add(part);
+		}
+		String start = input.getParameter(KEY_START);
+		Integer startIndex = start == null ? null : byContentId.get(normalizeContentId(start));
+		this.root = startIndex != null ? startIndex.intValue() : 0;
+	}
+
+	/**
+	 * Get the multipart subtype, eg. "related".
+	 * @return the subtype.
+	 */
+	public String getSubtype() {
+		return input.getSubtype();
+	}
+
+	/**
+	 * Get the value of a content type parameter.
+	 * @param key the parameter name, eg. "boundary".
+	 * @return the parameter value.
+	 */
+	public String getParameter(String key) {
+		return input.getParameter(key);
+	}
+
+	/**
+	 * Get the number of parts.
+	 * @return the part count.
+	 */
+	public int size() {
+		return parts.size();
+	}
+
+	/**
+	 * Get all parts in message order.
+	 * @return an unmodifiable list of the parts.
+	 */
+	public List<PartInput> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Get a part by position.
+	 * @param index the zero based position of the part.
+	 * @return the part.
+	 * @throws IndexOutOfBoundsException if there is no such part.
+	 */
+	public PartInput getPart(int index) {
+		return parts.get(index);
+	}
+
+	/**
+	 * Get the offset of a part body within the indexed buffer.
+	 * @param index the zero based position of the part.
+	 * @return the offset of the first body byte.
+	 */
+	public int getBodyOffset(int index) {
+		return bodies.get(index)[0];
+	}
+
+	/**
+	 * Get the length of a part body.
+	 * @param index the zero based position of the part.
+	 * @return the number of body bytes.
+	 */
+	public int getBodyLength(int index) {
+		return bodies.get(index)[1];
+	}
+
+	/**
+	 * Find a part by its Content-ID header.
+	 * @param contentId the content id, with or without angle brackets, or a "cid:" URL.
+	 * @return the position of the part, or -1 if no part has that id.
+	 */
+	public int indexOfContentId(String contentId) {
+		Integer index = byContentId.get(normalizeContentId(contentId));
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * Find a part by its Content-ID header.
+	 * @param contentId the content id, with or without angle brackets, or a "cid:" URL.
+	 * @return the part, or null if no part has that id.
+	 */
+	public PartInput getPartByContentId(String contentId) {
+		int index = indexOfContentId(contentId);
+		return index < 0 ? null : parts.get(index);
+	}
+
+	/**
+	 * Get the position of the root part, as named by the "start" parameter.
+	 * @return the root part position, 0 if there is no usable start parameter.
+	 */
+	public int getRootIndex() {
+		return root;
+	}
+
+	/**
+	 * Get the root part, as named by the "start" parameter.
+	 * @return the root part, or null if the message has no parts.
+	 */
+	public PartInput getRootPart() {
+		return parts.isEmpty() ? null : parts.get(root);
+	}
+
+	/**
+	 * Normalize a Content-ID header value, start parameter or "cid:" URL for lookup.
+	 * Surrounding quotes and angle brackets are removed, and the percent
+	 * escapes of a "cid:" URL (RFC 2392) are decoded.
+	 * @param contentId the value to normalize.
+	 * @return the bare content id.
+	 */
+	public static String normalizeContentId(String contentId) {
+		String s = contentId.trim();
+		if (s.length() >= 2 && (s.charAt(0) == '\'' || s.charAt(0) == '"') && s.charAt(s.length() - 1) == s.charAt(0)) {
+			s = s.substring(1, s.length() - 1).trim();
+		}
+		if (s.regionMatches(true, 0, "cid:", 0, 4)) {
+			s = percentDecode(s.substring(4));
+		}
+		if (s.length() >= 2 && s.charAt(0) == '<' && s.charAt(s.length() - 1) == '>') {
+			s = s.substring(1, s.length() - 1);
+		}
+		return s;
+	}
+
+	private static String percentDecode(String s) {
+		if (s.indexOf('%') < 0) {
+			return s;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%' && i + 2 < s.length() && Character.digit(s.charAt(i + 1), 16) >= 0
+					&& Character.digit(s.charAt(i + 2), 16) >= 0) {
+				out.write(Character.digit(s.charAt(i + 1), 16) * 16 + Character.digit(s.charAt(i + 2), 16));
+				i += 2;
+			} else {
+				out.write(c);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
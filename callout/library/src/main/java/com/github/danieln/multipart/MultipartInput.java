@@ -5,7 +5,6 @@
  */
 package com.github.danieln.multipart;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -43,7 +42,7 @@ public class MultipartInput {
 
 	private static final int PREEMBLE_LIMIT = 2000;
 
-	private final InputStream stream;
+	private final BoundaryScanner scanner;
 	private final String subtype;
 	private final Map<String, String> parameters;
 	private final String boundary;
@@ -58,7 +57,6 @@ public class MultipartInput {
 	 * @throws IllegalArgumentException if the content type is bad.
 	 */
 	public MultipartInput(InputStream stream, String contentType) throws IOException {
-		this.stream = new BufferedInputStream(stream);
 		this.subtype = parseContentType(contentType);
 		this.parameters = parseParams(contentType);
 		String b = getParameter(KEY_BOUNDARY);
@@ -71,7 +69,8 @@ public class MultipartInput {
 		// 	b = b.substring(2);
 		// }
 		this.boundary = b;
-		this.partStream = new PartInputStream(this.stream, boundary);
+		this.scanner = new BoundaryScanner(stream, boundary);
+		this.partStream = new PartInputStream(scanner);
 		partStream.skipToNextPart(PREEMBLE_LIMIT);
 		// If a boundary was found read should return -1 (EOF)
 		if (partStream.read() >= 0) {
@@ -96,6 +95,32 @@ public class MultipartInput {
 		return parameters.get(key.toLowerCase());
 	}
 
+	/**
+	 * Get the rest of the message as it is, from a boundary line to the end
+	 * of the stream. This allows a message to be passed on without parsing
+	 * the remaining parts. If only the headers of the current part have been
+	 * read, the rest starts with the boundary line before that part; if its
+	 * body has been read to the end, with the boundary line after it.
+	 * After this call there are no more parts.
+	 * @return the unparsed input, read lazily from the underlying stream.
+	 * @throws IOException if the body of the current part has been partly read.
+	 */
+	public InputStream getRemainingStream() throws IOException {
+		return partStream.detach();
+	}
+
+	/**
+	 * Set whether the Content-Length header of a part is trusted. When it is,
+	 * the body is read without searching it for the boundary and the boundary
+	 * is only checked for where the body ends. A wrong length that is detected
+	 * before any of the body is returned is ignored; otherwise reading the
+	 * part fails with an IOException. The default is true.
+	 * @param trust false to always search part bodies for the boundary.
+	 */
+	public void setTrustContentLength(boolean trust) {
+		scanner.setTrustContentLength(trust);
+	}
+
 	/**
 	 * Retrieve the next part in the stream.
 	 * Once a new part is retrieved the old one's input stream will be placed at end of file.
@@ -109,7 +134,7 @@ public class MultipartInput {
 		if (partStream.isLastPart()) {
 			return null;
 		}
-		partStream = new PartInputStream(stream, boundary);
+		partStream = new PartInputStream(scanner);
 		return new PartInput(partStream);
 	}
 
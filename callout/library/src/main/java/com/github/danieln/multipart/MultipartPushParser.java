@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+
+/**
+ * Incremental, non-blocking parser for MIME multipart content.
+ * <p>
+ * Where {@link MultipartInput} pulls from an InputStream and blocks until
+ * data arrives, this parser is pushed chunks of the message with
+ * {@link #feed(ByteBuffer)} as they become available, e.g. from an NIO
+ * channel, and reports what it finds to a {@link MultipartHandler}. It never
+ * reads on its own, so the caller controls the pace: the next chunk is only
+ * taken when the caller is ready to feed it. Call {@link #finish()} once the
+ * input is exhausted.
+ * <p>
+ * Only the few bytes that might be the start of a delimiter, and the header
+ * line currently being read, are kept between calls.
+ */
+public class MultipartPushParser {
+
+	private static final int PREEMBLE_LIMIT = 2000;
+	private static final int MAX_HEADER_LINE = 16384;
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private enum State { PREAMBLE, BOUNDARY_LINE, HEADERS, BODY, EPILOGUE }
+
+	// Progress within a boundary line
+	private static final int LINE_START = 0;
+	private static final int LINE_DASH = 1;
+	private static final int LINE_REST = 2;
+	private static final int LINE_CR = 3;
+
+	private final MultipartHandler handler;
+	private final String subtype;
+	private final Map<String, String> parameters;
+	private final BoundaryPattern pattern;
+
+	private byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+	private ByteBuffer view = ByteBuffer.wrap(buf);
+	private int pos;
+	private int limit;
+
+	private State state = State.PREAMBLE;
+	private int partStart;
+	private int scanFrom;
+	private int lineState;
+	private boolean lastPart;
+	private boolean finished;
+	private final StringBuilder headerLine = new StringBuilder();
+
+	/**
+	 * Create a new parser.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @param handler receives the parse events.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartPushParser(String contentType, MultipartHandler handler) {
+		this.handler = handler;
+		this.subtype = MultipartInput.parseContentType(contentType);
+		this.parameters = MultipartInput.parseParams(contentType);
+		String b = getParameter(MultipartInput.KEY_BOUNDARY);
+		if (b == null || b.length() == 0) {
+			throw new IllegalArgumentException("No or empty boundary specified in the ContentType");
+		}
+		this.pattern = new BoundaryPattern(b);
+	}
+
+	/**
+	 * Get the multipart subtype, eg. "mixed" or "x-mixed-replace".
+	 * @return the subtype.
+	 */
+	public String getSubtype() {
+		return subtype;
+	}
+
+	/**
+	 * Get the value of a content type parameter.
+	 * @param key the parameter name, eg. "boundary".
+	 * @return the parameter value.
+	 */
+	public String getParameter(String key) {
+		return parameters.get(key.toLowerCase());
+	}
+
+	/**
+	 * Check whether the closing delimiter has been seen.
+	 * @return true if the final part has ended.
+	 */
+	public boolean isComplete() {
+		return state == State.EPILOGUE;
+	}
+
+	/**
+	 * Parse the next chunk of the message.
+	 * All remaining bytes of the buffer are consumed.
+	 * @param data the next bytes of the message.
+	 * @throws IOException if the message is malformed or the handler fails.
+	 */
+	public void feed(ByteBuffer data) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Parser is finished");
+		}
+		while (data.hasRemaining()) {
+			if (state == State.EPILOGUE) {
+				data.position(data.limit());
+				return;
+			}
+			makeRoom();
+			int n = Math.min(data.remaining(), buf.length - limit);
+			data.get(buf, limit, n);
+			limit += n;
+			process(false);
+		}
+	}
+
+	/**
+	 * Signal the end of input. Anything held back is flushed to the handler.
+	 * A message without a closing delimiter ends with its last part.
+	 * @throws IOException if no part boundary was found or the handler fails.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		process(true);
+	}
+
+	private void process(boolean atEnd) throws IOException {
+		boolean progress = true;
+		while (progress) {
+			switch (state) {
+				case PREAMBLE:
+					progress = scanPreamble(atEnd);
+					break;
+				case BOUNDARY_LINE:
+					progress = scanBoundaryLine(atEnd);
+					break;
+				case HEADERS:
+					progress = scanHeaders(atEnd);
+					break;
+				case BODY:
+					progress = scanBody(atEnd);
+					break;
+				default:
+					pos = limit;
+					progress = false;
+					break;
+			}
+		}
+	}
+
+	private boolean scanPreamble(boolean atEnd) throws IOException {
+		int p = pattern.search(view, scanFrom, limit, partStart);
+		if (p >= 0) {
+			if (BoundaryPattern.delimiterStart(view, p, partStart) - partStart > PREEMBLE_LIMIT) {
+				throw new IOException("Can't find first part boundary");
+			}
+			startBoundaryLine(p);
+			return true;
+		}
+		scanFrom = Math.max(scanFrom, limit - pattern.length() + 1);
+		pos = Math.max(pos, limit - pattern.length() - 1);
+		if (atEnd || pos - partStart > PREEMBLE_LIMIT) {
+			throw new IOException("Can't find first part boundary");
+		}
+		return false;
+	}
+
+	private void startBoundaryLine(int p) {
+		pos = p + pattern.length();
+		state = State.BOUNDARY_LINE;
+		lineState = LINE_START;
+	}
+
+	private boolean scanBoundaryLine(boolean atEnd) throws IOException {
+		while (pos < limit) {
+			byte c = buf[pos];
+			switch (lineState) {
+				case LINE_START:
+					// Check for last part marker ("--")
+					if (c == '-') {
+						pos++;
+						lineState = LINE_DASH;
+					} else {
+						lineState = LINE_REST;
+					}
+					break;
+				case LINE_DASH:
+					if (c == '-') {
+						pos++;
+						lastPart = true;
+					}
+					lineState = LINE_REST;
+					break;
+				case LINE_REST:
+					// Skip to end of line
+					pos++;
+					if (c == '\r') {
+						lineState = LINE_CR;
+					} else if (c == '\n') {
+						nextPart();
+						return true;
+					}
+					break;
+				default:
+					// handle CRLF as well as just CR
+					if (c == '\n') {
+						pos++;
+					}
+					nextPart();
+					return true;
+			}
+		}
+		if (atEnd) {
+			nextPart();
+			return true;
+		}
+		return false;
+	}
+
+	private void nextPart() throws IOException {
+		if (lastPart) {
+			state = State.EPILOGUE;
+			handler.messageEnd();
+			return;
+		}
+		state = State.HEADERS;
+		partStart = pos;
+		headerLine.setLength(0);
+		handler.partStart();
+	}
+
+	private boolean scanHeaders(boolean atEnd) throws IOException {
+		while (true) {
+			// A delimiter can start at any line of the header block
+			int matched = pattern.matchLength(view, pos, limit);
+			if (matched == pattern.length()) {
+				startBody();
+				return true;
+			}
+			if (pos + matched == limit && !atEnd) {
+				return false;
+			}
+			int eol = pos;
+			while (eol < limit && buf[eol] != '\r' && buf[eol] != '\n') {
+				eol++;
+			}
+			if (eol == limit) {
+				if (eol - pos > MAX_HEADER_LINE) {
+					throw new IOException("Header line too long");
+				}
+				if (!atEnd) {
+					return false;
+				}
+				// End of input inside the headers
+				if (eol > pos) {
+					headerText(pos, eol);
+				}
+				pos = eol;
+				flushHeader();
+				endOfInput();
+				return false;
+			}
+			int next = eol + 1;
+			if (buf[eol] == '\r') {
+				if (next == limit && !atEnd) {
+					return false;
+				}
+				if (next < limit && buf[next] == '\n') {
+					next++;
+				}
+			}
+			if (eol == pos) {
+				// Empty line, end of headers
+				pos = next;
+				startBody();
+				return true;
+			}
+			headerText(pos, eol);
+			pos = next;
+		}
+	}
+
+	private void headerText(int from, int to) throws IOException {
+		String line = new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+		char first = line.charAt(0);
+		if (first == ' ' || first == '\t') {
+			// line folding
+			headerLine.append(' ').append(line.trim());
+		} else {
+			flushHeader();
+			headerLine.append(line);
+		}
+	}
+
+	private void flushHeader() throws IOException {
+		int i = headerLine.indexOf(":");
+		if (i > 0) {
+			handler.header(headerLine.substring(0, i).trim(), headerLine.substring(i + 1).trim());
+		}
+		headerLine.setLength(0);
+	}
+
+	private void startBody() throws IOException {
+		flushHeader();
+		state = State.BODY;
+		partStart = pos;
+		scanFrom = pos;
+	}
+
+	private boolean scanBody(boolean atEnd) throws IOException {
+		int p = pattern.search(view, scanFrom, limit, partStart);
+		if (p >= 0) {
+			emitBody(BoundaryPattern.delimiterStart(view, p, partStart));
+			handler.partEnd();
+			startBoundaryLine(p);
+			return true;
+		}
+		scanFrom = Math.max(scanFrom, limit - pattern.length() + 1);
+		// Hold back anything that could still turn out to be CRLF + pattern.
+		emitBody(atEnd ? limit : limit - pattern.length() - 1);
+		if (atEnd) {
+			endOfInput();
+		}
+		return false;
+	}
+
+	private void emitBody(int end) throws IOException {
+		if (end > pos) {
+			ByteBuffer chunk = ByteBuffer.wrap(buf, pos, end - pos).slice().asReadOnlyBuffer();
+			pos = end;
+			handler.bodyChunk(chunk);
+		}
+	}
+
+	private void endOfInput() throws IOException {
+		// End of file without boundary
+		handler.partEnd();
+		state = State.EPILOGUE;
+		handler.messageEnd();
+	}
+
+	/**
+	 * Discard consumed bytes, growing the buffer only if a header line needs it.
+	 */
+	private void makeRoom() {
+		if (limit < buf.length) {
+			return;
+		}
+		if (pos > 0) {
+			int keep = limit - pos;
+			System.arraycopy(buf, pos, buf, 0, keep);
+			int shift = pos;
+			pos = 0;
+			limit = keep;
+			partStart -= shift;
+			scanFrom = Math.max(scanFrom - shift, 0);
+		} else {
+			byte[] bigger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, limit);
+			buf = bigger;
+			view = ByteBuffer.wrap(buf);
+		}
+	}
+}
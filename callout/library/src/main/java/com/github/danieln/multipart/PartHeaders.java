@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * The headers of one part, parsed at the byte level.
+ * <p>
+ * Header lines are copied once into a small byte array, with line folding
+ * already undone, and each header is recorded as a pair of spans into that
+ * array. Names and values are only turned into Strings when asked for, and
+ * the well-known names are shared constants. Lookups compare bytes ignoring
+ * case, so no lower-cased copy of the name is made.
+ */
+final class PartHeaders {
+
+	private static final String[] KNOWN_NAMES = {
+		"content-type",
+		"content-id",
+		"content-transfer-encoding",
+		"content-length",
+		"content-disposition",
+	};
+
+	private static final int MAX_HEADER_BYTES = 65536;
+
+	// Parser states
+	private static final int LINE_START = 0;
+	private static final int NAME = 1;
+	private static final int VALUE = 2;
+	private static final int LINE_CR = 3;
+	private static final int END_CR = 4;
+	private static final int DONE = 5;
+
+	private byte[] raw = new byte[256];
+	private int rawLength;
+	// nameStart, nameEnd, valueStart, valueEnd for every header
+	private int[] spans = new int[16];
+	private int count;
+	private String[] names;
+	private String[] values;
+
+	private int nameStart = -1;
+	private int nameEnd = -1;
+
+	/**
+	 * Parse the header block at the current position of the source.
+	 * The source is left at the first byte of the body. A part that starts
+	 * with an empty line has no headers.
+	 * @param source the part.
+	 * @throws IOException if a read error occurs or the headers are too long.
+	 */
+	void parse(PartSource source) throws IOException {
+		int state = LINE_START;
+		while (state != DONE) {
+			ByteBuffer b = source.peek();
+			int p = b.position();
+			int lim = b.limit();
+			if (p == lim) {
+				// End of part
+				break;
+			}
+			int i = p;
+			scan: while (i < lim) {
+				byte c = b.get(i);
+				switch (state) {
+					case LINE_START:
+						if (c == '\r') {
+							i++;
+							state = END_CR;
+						} else if (c == '\n') {
+							i++;
+							state = DONE;
+							break scan;
+						} else if ((c == ' ' || c == '\t') && nameEnd >= 0) {
+							// line folding
+							i++;
+							append(' ');
+							state = VALUE;
+						} else {
+							commit();
+							nameStart = rawLength;
+							state = NAME;
+						}
+						break;
+					case NAME:
+						i++;
+						if (c == ':') {
+							nameEnd = rawLength;
+							state = VALUE;
+						} else if (c == '\r' || c == '\n') {
+							// Not a header line, drop it
+							rawLength = nameStart;
+							nameStart = -1;
+							state = c == '\r' ? LINE_CR : LINE_START;
+						} else {
+							append(c);
+						}
+						break;
+					case VALUE:
+						i++;
+						if (c == '\r') {
+							state = LINE_CR;
+						} else if (c == '\n') {
+							state = LINE_START;
+						} else {
+							append(c == '\t' ? ' ' : c);
+						}
+						break;
+					case LINE_CR:
+						// handle CRLF as well as just CR
+						if (c == '\n') {
+							i++;
+						}
+						state = LINE_START;
+						break;
+					default:
+						// End of headers after an empty line. Only a LF
+						// following the CR belongs to the headers.
+						if (c == '\n') {
+							i++;
+						}
+						state = DONE;
+						break scan;
+				}
+			}
+			source.consume(i - p);
+		}
+		commit();
+	}
+
+	private void append(int c) throws IOException {
+		if (rawLength == raw.length) {
+			if (raw.length >= MAX_HEADER_BYTES) {
+				throw new IOException("Part headers too long");
+			}
+			byte[] bigger = new byte[raw.length * 2];
+			System.arraycopy(raw, 0, bigger, 0, rawLength);
+			raw = bigger;
+		}
+		raw[rawLength++] = (byte) c;
+	}
+
+	private void commit() {
+		if (nameStart >= 0 && nameEnd >= 0) {
+			int ns = nameStart;
+			int ne = nameEnd;
+			while (ns < ne && raw[ns] == ' ') {
+				ns++;
+			}
+			while (ne > ns && raw[ne - 1] == ' ') {
+				ne--;
+			}
+			int vs = nameEnd;
+			int ve = rawLength;
+			while (vs < ve && raw[vs] == ' ') {
+				vs++;
+			}
+			while (ve > vs && raw[ve - 1] == ' ') {
+				ve--;
+			}
+			if (count * 4 == spans.length) {
+				int[] bigger = new int[spans.length * 2];
+				System.arraycopy(spans, 0, bigger, 0, spans.length);
+				spans = bigger;
+			}
+			int k = count * 4;
+			spans[k] = ns;
+			spans[k + 1] = ne;
+			spans[k + 2] = vs;
+			spans[k + 3] = ve;
+			count++;
+		}
+		nameStart = -1;
+		nameEnd = -1;
+	}
+
+	/**
+	 * Get the number of headers, counting repeated names.
+	 * @return the header count.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Get the lower case name of a header.
+	 * @param index the header position.
+	 * @return the name.
+	 */
+	String getName(int index) {
+		if (names == null) {
+			names = new String[count];
+		}
+		String name = names[index];
+		if (name == null) {
+			int k = index * 4;
+			for (String known : KNOWN_NAMES) {
+				if (nameEquals(k, known)) {
+					name = known;
+					break;
+				}
+			}
+			if (name == null) {
+				name = decode(spans[k], spans[k + 1]).toLowerCase(Locale.ROOT);
+			}
+			names[index] = name;
+		}
+		return name;
+	}
+
+	/**
+	 * Get the name of a header as it appears in the part.
+	 * @param index the header position.
+	 * @return the name, in its original case.
+	 */
+	String getOriginalName(int index) {
+		int k = index * 4;
+		return decode(spans[k], spans[k + 1]);
+	}
+
+	/**
+	 * Get the value of a header.
+	 * @param index the header position.
+	 * @return the trimmed value.
+	 */
+	String getValue(int index) {
+		if (values == null) {
+			values = new String[count];
+		}
+		String value = values[index];
+		if (value == null) {
+			int k = index * 4;
+			value = decode(spans[k + 2], spans[k + 3]);
+			values[index] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Get the value of a header by name. If the name is repeated the last one wins.
+	 * @param name the header name, case is not significant.
+	 * @return the value, or null if there is no such header.
+	 */
+	String get(String name) {
+		int index = indexOf(name);
+		return index < 0 ? null : getValue(index);
+	}
+
+	/**
+	 * Get the value of a header as an integer, parsed directly from the header bytes.
+	 * @param name the header name, case is not significant.
+	 * @param def the default value.
+	 * @return the value, or the default value if there is no such header or it isn't a number.
+	 */
+	int getInt(String name, int def) {
+		int index = indexOf(name);
+		if (index < 0) {
+			return def;
+		}
+		int i = spans[index * 4 + 2];
+		int end = spans[index * 4 + 3];
+		boolean negative = false;
+		if (i < end && (raw[i] == '-' || raw[i] == '+')) {
+			negative = raw[i] == '-';
+			i++;
+		}
+		if (i == end) {
+			return def;
+		}
+		long v = 0;
+		for (; i < end; i++) {
+			int d = raw[i] - '0';
+			if (d < 0 || d > 9) {
+				return def;
+			}
+			v = v * 10 + d;
+			if (v > (long) Integer.MAX_VALUE + 1) {
+				return def;
+			}
+		}
+		v = negative ? -v : v;
+		return v > Integer.MAX_VALUE ? def : (int) v;
+	}
+
+	/**
+	 * Get the distinct lower case header names, in order of appearance.
+	 * @return an unmodifiable set of names.
+	 */
+	Set<String> getNames() {
+		Set<String> set = new LinkedHashSet<String>();
+		for (int i = 0; i < count; i++) {
+			set.add(getName(i));
+		}
+		return Collections.unmodifiableSet(set);
+	}
+
+	private int indexOf(String name) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (nameEquals(i * 4, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean nameEquals(int k, String name) {
+		int start = spans[k];
+		int len = spans[k + 1] - start;
+		if (len != name.length()) {
+			return false;
+		}
+		for (int j = 0; j < len; j++) {
+			int a = raw[start + j] & 0xff;
+			int b = name.charAt(j);
+			if (a != b && toLower(a) != toLower(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLower(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private String decode(int start, int end) {
+		return new String(raw, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -7,8 +7,7 @@ package com.github.danieln.multipart;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 /**
@@ -17,12 +16,32 @@ import java.util.Set;
 public class PartInput {
 
 	private final InputStream stream;
-	private final Map<String, String> headers = new HashMap<String, String>();
+	private final PartInputStream partStream;
+	private final PartSource source;
+	private final PartHeaders headers = new PartHeaders();
+
+	private final ByteBufferInputStream bufferStream;
 
 	private boolean headersParsed;
+	private ByteBuffer body;
+	private int bodyOffset = -1;
 
-	PartInput(InputStream stream) {
+	PartInput(PartInputStream stream) {
 		this.stream = stream;
+		this.partStream = stream;
+		this.source = stream;
+		this.bufferStream = null;
+	}
+
+	/**
+	 * Create a part backed by a buffer holding its headers and body.
+	 * @param part the bytes between the delimiters of this part.
+	 */
+	PartInput(ByteBuffer part) {
+		this.bufferStream = new ByteBufferInputStream(part);
+		this.stream = bufferStream;
+		this.partStream = null;
+		this.source = bufferStream;
 	}
 
 	/**
@@ -35,6 +54,37 @@ public class PartInput {
 		return stream;
 	}
 
+	/**
+	 * Get the body of this part as a read-only view, without copying.
+	 * This is only available for parts read by {@link MultipartBufferInput}.
+	 * The returned buffer is independent of the input stream of this part.
+	 * @return the body of this part, or null if this part is read from a stream.
+	 * @throws IOException if a read error occurs.
+	 */
+	public ByteBuffer getBody() throws IOException {
+		parseHeaders();
+		return body == null ? null : body.duplicate();
+	}
+
+	/**
+	 * Get the offset of the body from the start of the part's buffer.
+	 * @return the header length, or -1 if this part is read from a stream.
+	 */
+	int getBodyOffset() throws IOException {
+		parseHeaders();
+		return bodyOffset;
+	}
+
+	/**
+	 * Cut the body of a buffer backed part short, once its end is known.
+	 * The headers must have been parsed.
+	 * @param length the body length.
+	 */
+	void limitBody(int length) {
+		body.limit(length);
+		bufferStream.getBuffer().limit(bodyOffset + length);
+	}
+
 	/**
 	 * Get the names of the headers. This allows enumeration.
 	 * @return the Set of all header names for this part
@@ -42,7 +92,7 @@ public class PartInput {
 	public Set<String> getHeaderNames() {
 		try {
 			parseHeaders();
-			return headers.keySet();
+			return headers.getNames();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
@@ -50,14 +100,27 @@ public class PartInput {
 	}
 
 	/**
-	 * Get the value of a header field.
-	 * @param name the header name.
+	 * Copy the headers of this part to a part being written, in their
+	 * original order and with the original case of their names.
+	 * @param part the part to copy the headers to.
+	 * @throws IOException if a read error occurs.
+	 */
+	public void copyHeadersTo(PartOutput part) throws IOException {
+		parseHeaders();
+		for (int i = 0; i < headers.size(); i++) {
+			part.setHeaderField(headers.getOriginalName(i), headers.getValue(i));
+		}
+	}
+
+	/**
+	 * Get the value of a header field. If the header is repeated the last value is returned.
+	 * @param name the header name, case is not significant.
 	 * @return the value of the header, or null if there is no such header.
 	 */
 	public String getHeaderField(String name) {
 		try {
 			parseHeaders();
-			return headers.get(name.toLowerCase());
+			return headers.get(name);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
@@ -72,8 +135,10 @@ public class PartInput {
 	 */
 	public int getHeaderFieldInt(String name, int def) {
 		try {
-			return Integer.parseInt(getHeaderField(name));
-		} catch (RuntimeException e) {
+			parseHeaders();
+			return headers.getInt(name, def);
+		} catch (IOException e) {
+			e.printStackTrace();
 			return def;
 		}
 	}
@@ -99,71 +164,16 @@ public class PartInput {
 			return;
 		}
 		headersParsed = true;
-
-		StringBuilder sb = new StringBuilder();
-		String key = null;
-		boolean inKey = true;
-		int c = stream.read();
-		if (c == '\r' || c == '\n') {
-			if (c == '\r') {
-				c = stream.read();
-				// FIXME If c != '\n' it should be put back into the stream
+		try {
+			headers.parse(source);
+			if (partStream != null) {
+				partStream.expectLength(headers.getInt("content-length", -1));
 			}
-			// No headers
-			return;
-		}
-		mainloop: while (c >= 0) {
-			switch (c) {
-				case ':':
-					if (inKey) {
-						key = sb.toString().toLowerCase();
-						sb.setLength(0);
-						inKey = false;
-					} else {
-						sb.append((char)c);
-					}
-					break;
-				case '\t':
-				case ' ':
-					sb.append(' ');
-					break;
-				case '\n':
-				case '\r':
-					// We need to check two at least character to detect end of headers and line folding
-					int pc = c;
-					c = stream.read();
-					if (pc == '\r' && c == '\n') {
-						// Got CRLF (correct newline sequence), need to check more...
-						c = stream.read();
-						if (c == '\r') {
-							// Got CRLF + CR need one more...
-							c = stream.read();
-						}
-					}
-					if (c == ' ' || c == '\t') {
-						// CRWS or LFWS or CRLFWS or CRLFCRWS
-						// line folding
-						sb.append(' ');
-					} else {
-						// header separator
-						if (key != null) {
-							headers.put(key, sb.toString().trim());
-						}
-						sb.setLength(0);
-						if (c == '\r' || c == '\n') {
-							// CRCR or LFLF or LFCR or CRLFLF or CRLFCRLF or CRLFCRCR
-							// end of headers
-							break mainloop;
-						}
-						inKey = true;
-						sb.append((char)c);
-					}
-					break;
-				default:
-					sb.append((char)c);
-					break;
+		} finally {
+			if (bufferStream != null) {
+				bodyOffset = bufferStream.getBuffer().position();
+				body = bufferStream.getBuffer().slice().asReadOnlyBuffer();
 			}
-			c = stream.read();
 		}
 	}
 }
@@ -7,108 +7,139 @@ package com.github.danieln.multipart;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 
-class PartInputStream extends InputStream {
+class PartInputStream extends InputStream implements PartSource {
 
-	private final InputStream stream;
-	private final byte[] boundary;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final BoundaryScanner scanner;
 
-	private boolean atStart;
 	private boolean lastPart;
 	private boolean endOfPart;
 
-	public PartInputStream(InputStream stream, String boundary) {
+	/**
+	 * Create the stream for the part starting at the scanner's current position.
+	 * @param scanner the scanner shared by all parts of the message.
+	 */
+	public PartInputStream(BoundaryScanner scanner) {
+		this.scanner = scanner;
+		scanner.startPart();
+	}
 
-		if (!stream.markSupported()) {
-			throw new IllegalArgumentException("The stream must support mark/reset");
-		}
-		this.stream = stream;
-		try {
-			this.boundary = ("--" + boundary).getBytes("US-ASCII");
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(e.getMessage());
+	@Override
+	public int read() throws IOException {
+		if (endOfPart) {
+			return -1;
 		}
-		atStart = true;
+		int c = scanner.read();
+		checkEndOfPart();
+		return c;
 	}
 
 	@Override
-	public int read() throws IOException {
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
 		if (endOfPart) {
 			return -1;
 		}
-		int c = stream.read();
-		if (c == '\r' || c == '\n' || atStart) {
-			int saved = c;
-			stream.mark(boundary.length + 2);
-			// The boundary includes the newline at the end of the line before if there is one.
-			// We check for CRLF (as it should be) or just CR or LF to be on the safe side.
-			if (c == '\r') c = stream.read();
-			if (c == '\n') c = stream.read();
-			// Read new bytes as long as they match the boundary
-			boolean ok = true;
-			for (int i = 0; i < boundary.length; i++) {
-				if ((byte)c != boundary[i]) {
-					ok = false;
-					break;
-				}
-				c = stream.read();
-			}
-			if (ok) {	// Boundary found
-				// Check for last part marker ("--")
-				if (c == '-') {
-					c = stream.read();
-					if (c == '-') {
-						c = stream.read();
-						lastPart = true;
-					}
-				}
-				// Skip to end of line
-				while (c >= 0 && c != '\r' && c != '\n') {
-					c = stream.read();
-				}
-				// handle CRLF as well as just CR
-				if (c == '\r') {
-					stream.mark(1);
-					if (stream.read() != '\n') {
-						stream.reset();
-					}
-				}
-				// Now the stream is positioned just after the newline following the boundary,
-				// ready for passing to a new PartInputStream reading the next part.
-				// This PartInputStream wont read any more, but instead signal end of file.
-				endOfPart = true;
-				return -1;
-			}
-			// It wasn't a boundary after all, rewind to the previous state...
-			stream.reset();
-			c = saved;
-		} else if (c < 0) {
-			// End of file without boundary
-			endOfPart = true;
-			lastPart = true;
+		int n = scanner.read(b, off, len);
+		checkEndOfPart();
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (endOfPart || n <= 0) {
+			return 0;
 		}
-		atStart = false;
-		return c;
+		long skipped = scanner.skip(n);
+		checkEndOfPart();
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return endOfPart ? 0 : scanner.available();
+	}
+
+	/**
+	 * Write the rest of this part to the given stream without
+	 * going through an intermediate buffer.
+	 * @param out the stream to write to.
+	 * @return the number of bytes transferred.
+	 * @throws IOException if a read or write error occurs.
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		if (endOfPart) {
+			return 0;
+		}
+		long n = scanner.transferTo(out);
+		checkEndOfPart();
+		return n;
+	}
+
+	@Override
+	public ByteBuffer peek() throws IOException {
+		if (endOfPart) {
+			return EMPTY;
+		}
+		ByteBuffer data = scanner.peekData();
+		checkEndOfPart();
+		return data;
+	}
+
+	@Override
+	public void consume(int n) {
+		scanner.consume(n);
+	}
+
+	/**
+	 * Declare the body length of this part, from its Content-Length header.
+	 * Must be called with the stream positioned at the start of the body.
+	 * @param length the body length.
+	 */
+	void expectLength(long length) {
+		if (!endOfPart) {
+			scanner.trustLength(length);
+		}
+	}
+
+	/**
+	 * Detach the raw rest of the message, from the last delimiter consumed.
+	 * @return the unparsed input.
+	 * @throws IOException if the body of this part has been partly read.
+	 */
+	InputStream detach() throws IOException {
+		InputStream rest = scanner.detach();
+		endOfPart = true;
+		lastPart = true;
+		return rest;
 	}
 
 	public void skipToNextPart() throws IOException {
 		while (!endOfPart) {
-			read();
+			skip(Long.MAX_VALUE);
 		}
 	}
 
 	public void skipToNextPart(int limit) throws IOException {
-		int i = 0;
-		while (!endOfPart && i < limit) {
-			read();
-			i++;
-		}
+		skip(limit);
 	}
 
 	public boolean isLastPart() {
 		return lastPart;
 	}
 
+	private void checkEndOfPart() {
+		if (scanner.isEndOfPart()) {
+			endOfPart = true;
+			lastPart = scanner.isLastPart();
+		}
+	}
+
 }
@@ -2,7 +2,7 @@ package com.github.danieln.multipart;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class PartOutput {
@@ -22,7 +22,7 @@ public class PartOutput {
 	}
 
 	private PartOutputStream stream;
-	private final Map<String, Header> headers = new HashMap<String, Header>();
+	private final Map<String, Header> headers = new LinkedHashMap<String, Header>();
 
 	private boolean headersWritten;
 
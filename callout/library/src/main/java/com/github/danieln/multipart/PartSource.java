@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Direct access to the buffered bytes of a part, so that the headers can be
+ * parsed in place instead of being read one byte at a time.
+ */
+interface PartSource {
+
+	/**
+	 * Get the buffered bytes of the part, from the current position on.
+	 * Reads more data if nothing is buffered. The returned buffer must
+	 * not be modified and is only valid until the next call.
+	 * @return a view of the buffered bytes, empty at the end of the part.
+	 * @throws IOException if a read error occurs.
+	 */
+	ByteBuffer peek() throws IOException;
+
+	/**
+	 * Advance past bytes returned by {@link #peek()}.
+	 * @param n the number of bytes to consume.
+	 */
+	void consume(int n);
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Measures the heap allocated per part while reading part headers.
+ * Run with: java -cp target/classes:target/test-classes com.github.danieln.multipart.HeaderParseBenchmark
+ * Needs a HotSpot JVM for the per-thread allocation counter.
+ */
+public class HeaderParseBenchmark {
+
+	private static final int PARTS = 2000;
+	private static final int ROUNDS = 50;
+
+	public static void main(String[] args) throws IOException {
+		byte[] message = buildMessage();
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long sink = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long bytesBefore = bean.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			sink += parse(message);
+			long elapsed = System.nanoTime() - start;
+			long allocated = bean.getThreadAllocatedBytes(tid) - bytesBefore;
+			if (round >= ROUNDS - 5) {
+				System.out.printf("round %d: %d bytes/part, %d ns/part%n", round, allocated / PARTS, elapsed / PARTS);
+			}
+		}
+		System.out.println("checksum " + sink);
+	}
+
+	private static long parse(byte[] message) throws IOException {
+		MultipartInput mpi = new MultipartInput(new ByteArrayInputStream(message), "multipart/related; boundary=MIME_boundary");
+		long sum = 0;
+		PartInput part;
+		while ((part = mpi.nextPart()) != null) {
+			sum += part.getContentType().length();
+			sum += part.getHeaderField("Content-ID").length();
+			sum += part.getContentLength();
+		}
+		return sum;
+	}
+
+	private static byte[] buildMessage() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < PARTS; i++) {
+			String part = "--MIME_boundary\r\n"
+				+ "Content-Type: application/octet-stream\r\n"
+				+ "Content-Transfer-Encoding: binary\r\n"
+				+ "Content-ID: <part-" + i + "@example.com>\r\n"
+				+ "Content-Length: 16\r\n"
+				+ "\r\n"
+				+ "0123456789abcdef\r\n";
+			out.write(part.getBytes(StandardCharsets.US_ASCII));
+		}
+		out.write("--MIME_boundary--\r\n".getBytes(StandardCharsets.US_ASCII));
+		return out.toByteArray();
+	}
+}
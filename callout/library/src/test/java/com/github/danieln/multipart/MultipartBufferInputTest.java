@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+
+
+public class MultipartBufferInputTest extends TestCase {
+
+	private static final String MESSAGE = "preamble\r\n"
+		+ "--qwerty\r\n"
+		+ "Content-Type: text/plain\r\n"
+		+ "Content-ID: <one>\r\n"
+		+ "\r\n"
+		+ "This is a test\r\n"
+		+ "--qwerty\r\n"
+		+ "\r\n"
+		+ "No header\n"
+		+ "--qwerty--\r\n"
+		+ "epilogue";
+
+	private static String asString(ByteBuffer b) {
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static void checkParts(MultipartBufferInput mpi) throws IOException {
+		assertEquals("subtype", "mixed", mpi.getSubtype());
+		PartInput part1 = mpi.nextPart();
+		assertNotNull("First part", part1);
+		PartInput part2 = mpi.nextPart();
+		assertNotNull("Second part", part2);
+		assertNull("Next part", mpi.nextPart());
+
+		// earlier parts stay readable
+		assertEquals("Part 1 type", "text/plain", part1.getContentType());
+		assertEquals("Part 1 id", "<one>", part1.getHeaderField("Content-ID"));
+		ByteBuffer body1 = part1.getBody();
+		assertTrue("read-only", body1.isReadOnly());
+		assertEquals("Part 1 body", "This is a test", asString(body1));
+		InputStream in = part1.getInputStream();
+		byte[] buf = new byte[20];
+		assertEquals("Stream 1 length", 14, in.read(buf));
+		assertEquals("Stream 1 end", -1, in.read());
+
+		assertNull("Part 2 type", part2.getContentType());
+		assertEquals("Part 2 body", "No header", asString(part2.getBody()));
+	}
+
+	public void testHeapBuffer() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+		checkParts(new MultipartBufferInput(buffer, "multipart/mixed;boundary=qwerty"));
+		assertEquals("caller position untouched", 0, buffer.position());
+	}
+
+	public void testDirectBuffer() throws IOException {
+		byte[] bytes = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		checkParts(new MultipartBufferInput(buffer, "multipart/mixed;boundary=qwerty"));
+	}
+
+	public void testMappedFile() throws IOException {
+		File f = File.createTempFile("multipart", ".bin");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+		} finally {
+			out.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			ByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			checkParts(new MultipartBufferInput(buffer, "multipart/mixed;boundary=qwerty"));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void testMissingBoundary() {
+		ByteBuffer buffer = ByteBuffer.wrap("no parts here".getBytes(StandardCharsets.US_ASCII));
+		try {
+			new MultipartBufferInput(buffer, "multipart/mixed;boundary=qwerty");
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("Can't find first part boundary", e.getMessage());
+		}
+	}
+
+	public void testStreamPartsHaveNoBody() throws IOException {
+		InputStream stream = new ByteArrayInputStream(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+		MultipartInput mpi = new MultipartInput(stream, "multipart/mixed;boundary=qwerty");
+		assertNull("no body view", mpi.nextPart().getBody());
+	}
+
+	public void testContentLength() throws IOException {
+		String message = "--qwerty\r\n"
+			+ "Content-Length: 22\r\n"
+			+ "\r\n"
+			+ "trusted\r\n--qwerty body\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Length: 2\r\n"
+			+ "\r\n"
+			+ "wrong length\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n"
+			+ "--qwerty--";
+		ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+		MultipartBufferInput mpi = new MultipartBufferInput(buffer, "multipart/mixed;boundary=qwerty");
+		// The delimiter is only looked for where the Content-Length says the body ends
+		assertEquals("Part 1 body", "trusted\r\n--qwerty body", asString(mpi.nextPart().getBody()));
+		assertEquals("Part 2 body", "wrong length", asString(mpi.nextPart().getBody()));
+		PartInput part3 = mpi.nextPart();
+		assertEquals("Part 3 length", 0, part3.getContentLength());
+		assertEquals("Part 3 body", "", asString(part3.getBody()));
+		assertNull("Next part", mpi.nextPart());
+	}
+}
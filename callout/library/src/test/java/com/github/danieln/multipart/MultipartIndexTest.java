@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+
+
+public class MultipartIndexTest extends TestCase {
+
+	private static final String MESSAGE = ""
+		+ "--MIME_boundary\r\n"
+		+ "Content-Type: application/octet-stream\r\n"
+		+ "Content-ID: <image%40insurance.com>\r\n"
+		+ "\r\n"
+		+ "...binary...\r\n"
+		+ "--MIME_boundary\r\n"
+		+ "Content-Type: application/xop+xml\r\n"
+		+ "Content-ID: <root@insurance.com>\r\n"
+		+ "\r\n"
+		+ "<soap:Envelope/>\r\n"
+		+ "--MIME_boundary--\r\n";
+
+	private static String asString(ByteBuffer b) {
+		return StandardCharsets.US_ASCII.decode(b).toString();
+	}
+
+	public void testLookup() throws IOException {
+		byte[] bytes = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+		MultipartIndex index = new MultipartIndex(ByteBuffer.wrap(bytes),
+				"multipart/related; boundary=MIME_boundary; start=\"<root@insurance.com>\"");
+		assertEquals("subtype", "related", index.getSubtype());
+		assertEquals("part count", 2, index.size());
+		assertEquals("root index", 1, index.getRootIndex());
+		assertEquals("root body", "<soap:Envelope/>", asString(index.getRootPart().getBody()));
+
+		assertEquals("by bracketed id", 0, index.indexOfContentId("<image%40insurance.com>"));
+		assertEquals("by cid url", 1, index.indexOfContentId("cid:root%40insurance.com"));
+		assertEquals("by bare id", 1, index.indexOfContentId("root@insurance.com"));
+		assertEquals("unknown id", -1, index.indexOfContentId("cid:nothing"));
+		assertNull("unknown part", index.getPartByContentId("nothing"));
+
+		int offset = index.getBodyOffset(0);
+		assertEquals("offset of part 1 body", MESSAGE.indexOf("...binary..."), offset);
+		assertEquals("length of part 1 body", "...binary...".length(), index.getBodyLength(0));
+		assertEquals("offset of part 2 body", MESSAGE.indexOf("<soap:Envelope/>"), index.getBodyOffset(1));
+	}
+
+	public void testRootDefaultsToFirstPart() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+		MultipartIndex index = new MultipartIndex(buffer, "multipart/related; boundary=MIME_boundary; start=\"<nope>\"");
+		assertEquals("root index", 0, index.getRootIndex());
+		index = new MultipartIndex(buffer, "multipart/related; boundary=MIME_boundary");
+		assertEquals("root index", 0, index.getRootIndex());
+	}
+
+	public void testNormalizeContentId() {
+		assertEquals("x@y", MultipartIndex.normalizeContentId(" <x@y> "));
+		assertEquals("x@y", MultipartIndex.normalizeContentId("'<x@y>'"));
+		assertEquals("x@y", MultipartIndex.normalizeContentId("CID:x%40y"));
+		assertEquals("namita", MultipartIndex.normalizeContentId("'namita'"));
+	}
+}
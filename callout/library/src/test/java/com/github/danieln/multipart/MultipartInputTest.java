@@ -7,10 +7,15 @@ package com.github.danieln.multipart;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Random;
 import junit.framework.TestCase;
 
 
@@ -214,4 +219,297 @@ public class MultipartInputTest extends TestCase {
 		assertEquals("Stream 1 length", 14, n);
 
 	}
+
+	/**
+	 * Returns at most one byte per read, so that every delimiter
+	 * straddles a buffer refill at some point.
+	 */
+	private static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] buildMessage(String boundary, byte[][] bodies) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MultipartOutput mo = new MultipartOutput(out, "related", boundary);
+		for (int i = 0; i < bodies.length; i++) {
+			PartOutput po = mo.newPart(i == bodies.length - 1);
+			po.setContentType("application/octet-stream");
+			po.getOutputStream().write(bodies[i]);
+		}
+		mo.close();
+		// MultipartOutput starts with a part separator, strip the leading CRLF
+		byte[] msg = out.toByteArray();
+		return Arrays.copyOfRange(msg, 2, msg.length);
+	}
+
+	private static byte[] noisyBytes(Random rng, int length, String boundary) {
+		byte[] alphabet = ("\r\n-" + boundary.substring(0, boundary.length() - 1)).getBytes(StandardCharsets.US_ASCII);
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = rng.nextInt(4) == 0 ? (byte) rng.nextInt(256) : alphabet[rng.nextInt(alphabet.length)];
+		}
+		return b;
+	}
+
+	public void testBulkReadBinaryParts() throws IOException {
+		Random rng = new Random(42);
+		String boundary = "----=_Part_7";
+		byte[][] bodies = {
+			noisyBytes(rng, 5, boundary),
+			noisyBytes(rng, 20000, boundary),
+			new byte[0],
+			noisyBytes(rng, 8191, boundary),
+		};
+		byte[] message = buildMessage(boundary, bodies);
+		String contentType = "multipart/related; boundary=\"" + boundary + "\"";
+
+		for (int pass = 0; pass < 2; pass++) {
+			InputStream stream = new ByteArrayInputStream(message);
+			if (pass == 1) {
+				stream = new TrickleInputStream(stream);
+			}
+			MultipartInput mpm = new MultipartInput(stream, contentType);
+			for (int i = 0; i < bodies.length; i++) {
+				PartInput part = mpm.nextPart();
+				assertNotNull("part " + i, part);
+				assertEquals("part " + i + " type", "application/octet-stream", part.getContentType());
+				assertTrue("part " + i + " content", Arrays.equals(bodies[i], readFully(part.getInputStream())));
+			}
+			assertNull("no more parts", mpm.nextPart());
+		}
+	}
+
+	public void testSkipAndTransferTo() throws IOException {
+		Random rng = new Random(7);
+		String boundary = "qwerty";
+		byte[][] bodies = {
+			noisyBytes(rng, 30000, boundary),
+			noisyBytes(rng, 30000, boundary),
+		};
+		byte[] message = buildMessage(boundary, bodies);
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(message), "multipart/mixed;boundary=qwerty");
+
+		PartInput part = mpm.nextPart();
+		InputStream in = part.getInputStream();
+		assertEquals("skipped", 10000, in.skip(10000));
+		PartInputStream pin = (PartInputStream) in;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals("transferred", 20000, pin.transferTo(out));
+		assertTrue("rest of part 1", Arrays.equals(Arrays.copyOfRange(bodies[0], 10000, 30000), out.toByteArray()));
+		assertEquals("Stream 1 end", -1, in.read());
+
+		part = mpm.nextPart();
+		in = part.getInputStream();
+		assertEquals("skip to end", 30000, in.skip(Long.MAX_VALUE));
+		assertEquals("Stream 2 end", -1, in.read());
+		assertNull("no more parts", mpm.nextPart());
+	}
+
+	public void testAdversarialBody() throws IOException {
+		// long runs of near-matches of the delimiter, on a fresh line each time
+		String boundary = "--------aaaaaaaaaaab";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			sb.append("\r\n----------aaaaaaaaaaa");
+		}
+		byte[] body = sb.toString().getBytes(StandardCharsets.US_ASCII);
+		byte[] message = buildMessage(boundary, new byte[][] { body, body });
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(message),
+				"multipart/mixed; boundary=\"" + boundary + "\"");
+		assertTrue("part 1", Arrays.equals(body, readFully(mpm.nextPart().getInputStream())));
+		assertTrue("part 2", Arrays.equals(body, readFully(mpm.nextPart().getInputStream())));
+		assertNull("no more parts", mpm.nextPart());
+	}
+
+	public void testBoundaryNotAtLineStart() throws IOException {
+		String message = "--qwerty\r\n"
+			+ "\r\n"
+			+ "a--qwerty b\r--qwerty\r\n"
+			+ "\r\n"
+			+ "c\n\n--qwerty--";
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(message.getBytes("US-ASCII")),
+				"multipart/mixed;boundary=qwerty");
+		assertEquals("part 1", "a--qwerty b", new String(readFully(mpm.nextPart().getInputStream()), "US-ASCII"));
+		assertEquals("part 2", "c\n", new String(readFully(mpm.nextPart().getInputStream()), "US-ASCII"));
+		assertNull("no more parts", mpm.nextPart());
+	}
+
+	public void testHeaderParsing() throws IOException {
+		String message = "--qwerty\r\n"
+			+ "CONTENT-TYPE: text/xml;\r\n"
+			+ "\tcharset=UTF-8\r\n"
+			+ "not a header\r\n"
+			+ "X-Dup: one\n"
+			+ "x-dup:  two \r\n"
+			+ "Content-Length: 3\r\n"
+			+ "\r\n"
+			+ "abc\r\n"
+			+ "--qwerty\r\n"
+			+ "\rbody\r\n"
+			+ "--qwerty--";
+		for (int i = 0; i < 2; i++) {
+			InputStream stream = new ByteArrayInputStream(message.getBytes("US-ASCII"));
+			if (i == 1) {
+				stream = new TrickleInputStream(stream);
+			}
+			MultipartInput mpm = new MultipartInput(stream, "multipart/mixed;boundary=qwerty");
+			PartInput part = mpm.nextPart();
+			assertEquals("folded value", "text/xml; charset=UTF-8", part.getContentType());
+			assertEquals("case insensitive", "text/xml; charset=UTF-8", part.getHeaderField("Content-Type"));
+			assertEquals("last value wins", "two", part.getHeaderField("X-DUP"));
+			assertEquals("length", 3, part.getContentLength());
+			assertEquals("names", Arrays.asList("content-type", "x-dup", "content-length"),
+					Arrays.asList(part.getHeaderNames().toArray()));
+			assertEquals("body 1", "abc", new String(readFully(part.getInputStream()), "US-ASCII"));
+			// A lone CR ends the (empty) headers without eating the body
+			part = mpm.nextPart();
+			assertTrue("no headers", part.getHeaderNames().isEmpty());
+			assertEquals("body 2", "body", new String(readFully(part.getInputStream()), "US-ASCII"));
+			assertNull("no more parts", mpm.nextPart());
+		}
+	}
+
+	private static byte[] buildLengthMessage(String boundary, byte[][] bodies, int[] lengths) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < bodies.length; i++) {
+			out.write(("--" + boundary + "\r\nContent-Length: " + lengths[i] + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			out.write(bodies[i]);
+			out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		out.write(("--" + boundary + "--").getBytes(StandardCharsets.US_ASCII));
+		return out.toByteArray();
+	}
+
+	public void testContentLength() throws IOException {
+		Random rng = new Random(11);
+		String boundary = "----=_Part_8";
+		byte[][] bodies = {
+			noisyBytes(rng, 50000, boundary),
+			noisyBytes(rng, 5, boundary),
+			new byte[0],
+			noisyBytes(rng, 9000, boundary),
+		};
+		int[] lengths = { 50000, 5, 0, 9000 };
+		byte[] message = buildLengthMessage(boundary, bodies, lengths);
+		String contentType = "multipart/related; boundary=\"" + boundary + "\"";
+
+		for (int pass = 0; pass < 2; pass++) {
+			InputStream stream = new ByteArrayInputStream(message);
+			if (pass == 1) {
+				stream = new TrickleInputStream(stream);
+			}
+			MultipartInput mpm = new MultipartInput(stream, contentType);
+			for (int i = 0; i < bodies.length; i++) {
+				PartInput part = mpm.nextPart();
+				assertEquals("part " + i + " length", lengths[i], part.getContentLength());
+				assertTrue("part " + i + " content", Arrays.equals(bodies[i], readFully(part.getInputStream())));
+			}
+			assertNull("no more parts", mpm.nextPart());
+		}
+	}
+
+	public void testContentLengthMismatch() throws IOException {
+		Random rng = new Random(12);
+		String boundary = "----=_Part_9";
+		byte[][] bodies = {
+			noisyBytes(rng, 5, boundary),
+			noisyBytes(rng, 50000, boundary),
+		};
+		byte[] message = buildLengthMessage(boundary, bodies, new int[] { 3, 49000 });
+		String contentType = "multipart/related; boundary=\"" + boundary + "\"";
+
+		// Caught before any of the body was returned: searched as usual
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(message), contentType);
+		assertTrue("short part", Arrays.equals(bodies[0], readFully(mpm.nextPart().getInputStream())));
+		// Caught after the body was streamed on trust
+		InputStream in = mpm.nextPart().getInputStream();
+		try {
+			readFully(in);
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("Part body doesn't end at its Content-Length", e.getMessage());
+		}
+
+		mpm = new MultipartInput(new ByteArrayInputStream(message), contentType);
+		mpm.setTrustContentLength(false);
+		for (int i = 0; i < bodies.length; i++) {
+			assertTrue("part " + i, Arrays.equals(bodies[i], readFully(mpm.nextPart().getInputStream())));
+		}
+		assertNull("no more parts", mpm.nextPart());
+	}
+
+	public void testRemainingStream() throws IOException {
+		String head = "--qwerty\r\n"
+			+ "Content-Type: text/xml\r\n"
+			+ "X-Custom: 1\r\n"
+			+ "\r\n"
+			+ "<a/>";
+		String rest = "\r\n--qwerty\r\n"
+			+ "Content-ID: <att>\r\n"
+			+ "CONTENT-TYPE: application/octet-stream\r\n"
+			+ "\r\n"
+			+ "binary\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "--qwerty--\r\n"
+			+ "epilogue";
+		byte[] message = (head + rest).getBytes("US-ASCII");
+		for (int pass = 0; pass < 2; pass++) {
+			InputStream stream = new ByteArrayInputStream(message);
+			if (pass == 1) {
+				stream = new TrickleInputStream(stream);
+			}
+			MultipartInput mpm = new MultipartInput(stream, "multipart/related;boundary=qwerty");
+			PartInput part1 = mpm.nextPart();
+			assertEquals("body 1", "<a/>", new String(readFully(part1.getInputStream()), "US-ASCII"));
+			PartInput part2 = mpm.nextPart();
+			assertEquals("type 2", "application/octet-stream", part2.getContentType());
+			assertEquals("rest", rest, new String(readFully(mpm.getRemainingStream()), "US-ASCII"));
+			assertNull("no more parts", mpm.nextPart());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PartOutput po = new MultipartOutput(out, "related", "qwerty").newPart();
+			part1.copyHeadersTo(po);
+			po.getOutputStream().flush();
+			assertEquals("copied headers", "\r\n--qwerty\r\nContent-Type: text/xml\r\nX-Custom: 1\r\n\r\n",
+					new String(out.toByteArray(), "US-ASCII"));
+		}
+
+		// After a body has been read to the end the rest starts after it
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(message), "multipart/related;boundary=qwerty");
+		mpm.nextPart();
+		mpm.nextPart();
+		readFully(mpm.nextPart().getInputStream());
+		assertEquals("rest after last part", "\r\n--qwerty--\r\nepilogue",
+				new String(readFully(mpm.getRemainingStream()), "US-ASCII"));
+
+		mpm = new MultipartInput(new ByteArrayInputStream(message), "multipart/related;boundary=qwerty");
+		mpm.nextPart();
+		mpm.nextPart().getInputStream().read();
+		try {
+			mpm.getRemainingStream();
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("Part body has been partly read", e.getMessage());
+		}
+	}
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class MultipartPushParserTest extends TestCase {
+
+	/**
+	 * Records the events as text, coalescing adjacent body chunks.
+	 */
+	private static class Recorder implements MultipartHandler {
+		final List<String> events = new ArrayList<String>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		public void partStart() {
+			events.add("start");
+		}
+
+		public void header(String name, String value) {
+			events.add(name + "=" + value);
+		}
+
+		public void bodyChunk(ByteBuffer chunk) {
+			assertTrue("read-only chunk", chunk.isReadOnly());
+			byte[] b = new byte[chunk.remaining()];
+			chunk.get(b);
+			body.write(b, 0, b.length);
+		}
+
+		public void partEnd() {
+			events.add("body:" + new String(body.toByteArray(), StandardCharsets.ISO_8859_1));
+			body.reset();
+			events.add("end");
+		}
+
+		public void messageEnd() {
+			events.add("done");
+		}
+	}
+
+	private static final String MESSAGE = "preamble\r\n"
+		+ "--qwerty\r\n"
+		+ "Content-Type: text/plain\r\n"
+		+ "X-Folded: one\r\n"
+		+ "\ttwo\r\n"
+		+ "\r\n"
+		+ "This is a test\r\n"
+		+ "--qwerty-\r\n"
+		+ "\r\n"
+		+ "a--qwerty\r\r\n"
+		+ "--qwerty\n"
+		+ "Content-Length: 0\n"
+		+ "\n"
+		+ "--qwerty--\r\n"
+		+ "epilogue --qwerty\r\n";
+
+	private static final String[] EXPECTED = {
+		"start", "Content-Type=text/plain", "X-Folded=one two", "body:This is a test", "end",
+		"start", "body:a--qwerty\r", "end",
+		"start", "Content-Length=0", "body:", "end",
+		"done",
+	};
+
+	private static List<String> parse(byte[] message, int chunkSize) throws IOException {
+		Recorder recorder = new Recorder();
+		MultipartPushParser parser = new MultipartPushParser("multipart/mixed; boundary=qwerty", recorder);
+		for (int off = 0; off < message.length; off += chunkSize) {
+			ByteBuffer chunk = ByteBuffer.wrap(message, off, Math.min(chunkSize, message.length - off));
+			parser.feed(chunk);
+			assertFalse("chunk consumed", chunk.hasRemaining());
+		}
+		parser.finish();
+		return recorder.events;
+	}
+
+	public void testChunkSizes() throws IOException {
+		byte[] message = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+		int[] sizes = { 1, 2, 3, 7, 11, 64, message.length };
+		for (int size : sizes) {
+			List<String> events = parse(message, size);
+			for (int i = 0; i < EXPECTED.length; i++) {
+				assertEquals("chunk size " + size + " event " + i, EXPECTED[i], events.get(i));
+			}
+			assertEquals("chunk size " + size + " event count", EXPECTED.length, events.size());
+		}
+	}
+
+	public void testLargeBody() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append("line ").append(i).append("\r\n--qwert\r\n");
+		}
+		String body = sb.toString();
+		String message = "--qwerty\r\n\r\n" + body + "\r\n--qwerty--";
+		List<String> events = parse(message.getBytes(StandardCharsets.US_ASCII), 1000);
+		assertEquals("events", 4, events.size());
+		assertEquals("body", "body:" + body, events.get(1));
+		assertEquals("done", "done", events.get(3));
+	}
+
+	public void testMissingClosingDelimiter() throws IOException {
+		List<String> events = parse("--qwerty\r\n\r\nunterminated".getBytes(StandardCharsets.US_ASCII), 5);
+		assertEquals("body", "body:unterminated", events.get(1));
+		assertEquals("done", "done", events.get(events.size() - 1));
+	}
+
+	public void testNoBoundary() {
+		try {
+			parse("just some text".getBytes(StandardCharsets.US_ASCII), 4);
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("Can't find first part boundary", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+
+/**
+ * Compares rewriting the first part of a two part message by re-encoding
+ * the whole message with copying the rest of it verbatim through
+ * {@link MultipartInput#getRemainingStream()}, for growing attachments.
+ * Run with: java -cp target/classes:target/test-classes com.github.danieln.multipart.SpliceBenchmark
+ * Needs a HotSpot JVM for the per-thread allocation counter.
+ */
+public class SpliceBenchmark {
+
+	private static final String BOUNDARY = "MIME_boundary";
+	private static final String CONTENT_TYPE = "multipart/related; boundary=" + BOUNDARY;
+	private static final int ROUNDS = 5;
+
+	private static final OutputStream NULL = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		for (int size = 1 << 20; size <= 32 << 20; size <<= 1) {
+			byte[] message = buildMessage(size);
+			for (int mode = 0; mode < 2; mode++) {
+				long allocated = 0;
+				long elapsed = 0;
+				for (int round = 0; round < ROUNDS; round++) {
+					long bytesBefore = bean.getThreadAllocatedBytes(tid);
+					long start = System.nanoTime();
+					drain(mode == 0 ? reencode(message) : splice(message));
+					elapsed = System.nanoTime() - start;
+					allocated = bean.getThreadAllocatedBytes(tid) - bytesBefore;
+				}
+				System.out.printf("%-8s %6d KiB attachment: %10d bytes allocated, %8d us%n",
+						mode == 0 ? "reencode" : "splice", size >> 10, allocated, elapsed / 1000);
+			}
+		}
+	}
+
+	private static InputStream reencode(byte[] message) throws IOException {
+		MultipartInput mpi = new MultipartInput(new ByteArrayInputStream(message), CONTENT_TYPE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MultipartOutput mpo = new MultipartOutput(out, "related", BOUNDARY);
+		PartInput part1 = mpi.nextPart();
+		PartOutput po1 = mpo.newPart();
+		part1.copyHeadersTo(po1);
+		po1.getOutputStream().write(rewrite(part1));
+		PartInput part2 = mpi.nextPart();
+		PartOutput po2 = mpo.newPart();
+		part2.copyHeadersTo(po2);
+		byte[] buf = new byte[4096];
+		InputStream in = part2.getInputStream();
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			po2.getOutputStream().write(buf, 0, n);
+		}
+		mpo.close();
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	private static InputStream splice(byte[] message) throws IOException {
+		MultipartInput mpi = new MultipartInput(new ByteArrayInputStream(message), CONTENT_TYPE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MultipartOutput mpo = new MultipartOutput(out, "related", BOUNDARY);
+		PartInput part1 = mpi.nextPart();
+		PartOutput po1 = mpo.newPart();
+		part1.copyHeadersTo(po1);
+		po1.getOutputStream().write(rewrite(part1));
+		mpi.nextPart().getContentType();
+		return new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), mpi.getRemainingStream());
+	}
+
+	private static byte[] rewrite(PartInput part) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[256];
+		InputStream in = part.getInputStream();
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toString("UTF-8").replace("secret", "").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			NULL.write(buf, 0, n);
+		}
+	}
+
+	private static byte[] buildMessage(int attachmentSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("--" + BOUNDARY + "\r\n"
+			+ "Content-Type: application/soap+xml; charset=UTF-8\r\n"
+			+ "Content-ID: <root@example.com>\r\n"
+			+ "\r\n"
+			+ "<Envelope><Header>secret</Header><Body/></Envelope>\r\n"
+			+ "--" + BOUNDARY + "\r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "Content-ID: <att@example.com>\r\n"
+			+ "\r\n").getBytes(StandardCharsets.US_ASCII));
+		byte[] attachment = new byte[attachmentSize];
+		new Random(1).nextBytes(attachment);
+		out.write(attachment);
+		out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		return out.toByteArray();
+	}
+}